@@ -0,0 +1,112 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.legacy;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.*;
+import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link LegacyDohResolver#send} against an in-process DoH server without TLS
+ *
+ * <pre>./gradlew :legacy:jmh</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LegacyDohBenchmark {
+
+    @Param({ "get", "post" })
+    public String method;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private LegacyDohResolver resolver;
+    private Message query;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(4);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+        server.createContext("/dns-query", exchange -> {
+            final byte[] wire;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                wire = readAll(exchange.getRequestBody());
+            } else {
+                final String parameter = exchange.getRequestURI().getRawQuery();
+                wire = Base64.getUrlDecoder().decode(parameter.substring(parameter.indexOf('=') + 1));
+            }
+            final byte[] response = answer(new Message(wire));
+            exchange.getResponseHeaders().set("Content-Type", "application/dns-message");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+
+        resolver = new LegacyDohResolver("http://127.0.0.1:" + server.getAddress().getPort() + "/dns-query");
+        resolver.setUsePost("post".equals(method));
+        query = Message.newQuery(Record.newRecord(Name.fromString("example.com."), Type.A, DClass.IN));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public Message send() throws IOException {
+        return resolver.send(query);
+    }
+
+    private static byte[] answer(Message query) throws IOException {
+        final Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.RA);
+        final Record question = query.getQuestion();
+        response.addRecord(question, Section.QUESTION);
+        response.addRecord(new ARecord(question.getName(), DClass.IN, 300, InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 })), Section.ANSWER);
+        return response.toWire();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+}
@@ -26,13 +26,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xbill.DNS.*;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.Properties;
 
 public class LegacyDNSPlugin extends PowerTunnelPlugin {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(LegacyDNSPlugin.class);
 
+    // Keys of the most popular zones, the root key is validated on the way
+    private static final String[] PRELOADED_ZONES = { ".", "com.", "net.", "org.", "io.", "ru." };
+
     @Override
     public void onProxyInitialization(@NotNull ProxyServer proxy) {
         final Configuration configuration = readConfiguration();
@@ -65,7 +71,9 @@ public class LegacyDNSPlugin extends PowerTunnelPlugin {
 
         Resolver resolver = null;
         if(doh) {
-            resolver = new LegacyDohResolver(dns);
+            final LegacyDohResolver dohResolver = new LegacyDohResolver(dns);
+            dohResolver.setUsePost(configuration.get("doh_method", "get").equals("post"));
+            resolver = dohResolver;
         } else {
             if(!dns.isEmpty()) {
                 if (!DNSParser.isIPv4(dns) && !DNSParser.isIPv4WithPort(dns) && !DNSParser.isIPv6(dns) && !DNSParser.isIPv6WithPort(dns)) {
@@ -95,7 +103,7 @@ public class LegacyDNSPlugin extends PowerTunnelPlugin {
                         throw new RuntimeException("Failed to initialize default DNS Resolver: " + ex.getMessage(), ex);
                     }
                 }
-                resolver = new ValidatingResolver(resolver);
+                resolver = createValidatingResolver(resolver);
             }
         }
 
@@ -119,4 +127,33 @@ public class LegacyDNSPlugin extends PowerTunnelPlugin {
             }
         }));
     }
+
+    private static ValidatingResolver createValidatingResolver(Resolver upstream) {
+        final ValidatingResolver resolver = new ValidatingResolver(upstream);
+        final Properties properties = new Properties();
+        properties.setProperty("org.jitsi.dnssec.keycache.max_size", "4096");
+        properties.setProperty("org.jitsi.dnssec.keycache.max_ttl", "86400");
+        try (InputStream in = LegacyDNSPlugin.class.getResourceAsStream("/root.key")) {
+            if (in == null) throw new IOException("Root trust anchors are missing");
+            resolver.init(properties);
+            resolver.loadTrustAnchors(in);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to load DNSSEC trust anchors: " + ex.getMessage(), ex);
+        }
+
+        // Validated keys are cached, fetch the popular ones before the first lookups need them
+        final Thread preloader = new Thread(() -> {
+            for (String zone : PRELOADED_ZONES) {
+                try {
+                    resolver.send(Message.newQuery(Record.newRecord(Name.fromString(zone), Type.DNSKEY, DClass.IN)));
+                } catch (IOException ex) {
+                    LOGGER.debug("Failed to preload DNSSEC keys of zone '{}': {}", zone, ex.getMessage());
+                }
+            }
+        }, "legacy-dnssec-preload");
+        preloader.setDaemon(true);
+        preloader.start();
+
+        return resolver;
+    }
 }
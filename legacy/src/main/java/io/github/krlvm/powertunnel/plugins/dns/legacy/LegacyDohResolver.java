@@ -23,16 +23,27 @@ import org.slf4j.LoggerFactory;
 import org.xbill.DNS.*;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Very basic implementation of
  * DNS over HTTPS (DoH) Resolver
  * for dnsjava v2.x
  *
+ * Connections are kept alive and reused
+ * by the platform HttpURLConnection pool
+ *
  * Parts of code were derived from
  * DohResolver of dnsjava v3.x
  */
@@ -40,10 +51,40 @@ public class LegacyDohResolver implements Resolver {
 
     private final Logger log = LoggerFactory.getLogger(LegacyDohResolver.class);
 
+    private static final ThreadPoolExecutor ASYNC_EXECUTOR = new ThreadPoolExecutor(
+            4, 4,
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            runnable -> {
+                final Thread thread = new Thread(runnable, "legacy-doh");
+                thread.setDaemon(true);
+                return thread;
+            }
+    );
+    static {
+        ASYNC_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private static final int MAX_MESSAGE_SIZE = 65535;
+    // Most responses fit into the default EDNS buffer size
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[INITIAL_BUFFER_SIZE];
+        }
+    };
+
     private final String host;
 
     private int timeout;
     private TSIG tsig;
+    private OPTRecord queryOPT;
+    private boolean usePost = false;
+
+    // Parsed once and shared by all POST requests
+    private URL endpoint;
 
     public LegacyDohResolver(String host) {
         this.host = host;
@@ -68,12 +109,21 @@ public class LegacyDohResolver implements Resolver {
 
     @Override
     public void setEDNS(int level) {
-
+        setEDNS(level, 0, 0, null);
     }
 
+    /**
+     * The OPT record is added to queries that don't have one,
+     * it carries the DNSSEC OK flag set by the validating resolver
+     */
     @Override
     public void setEDNS(int level, int payloadSize, int flags, List options) {
-
+        if (level != 0 && level != -1) {
+            throw new IllegalArgumentException("Invalid EDNS level - must be 0 or -1");
+        }
+        this.queryOPT = level == -1 ? null : new OPTRecord(
+                payloadSize == 0 ? 1280 : payloadSize, 0, level, flags, options
+        );
     }
 
     @Override
@@ -91,40 +141,92 @@ public class LegacyDohResolver implements Resolver {
         setTimeout(secs, 0);
     }
 
+    /**
+     * Enables POST requests with the query in the body,
+     * GET requests with the query in the URI are sent by default
+     */
+    public void setUsePost(boolean usePost) {
+        this.usePost = usePost;
+    }
+
+    public boolean isUsePost() {
+        return usePost;
+    }
+
     @Override
     public Message send(Message query) throws IOException {
-        query = ((Message) query.clone());
+        final int id = query.getHeader().getID();
+        final byte[] wire;
+        if (queryOPT != null && query.getOPT() == null) {
+            query = ((Message) query.clone());
+            query.addRecord(queryOPT, Section.ADDITIONAL);
+        }
         if (tsig != null) {
+            query = ((Message) query.clone());
+            if (!usePost) query.getHeader().setID(0);
             tsig.apply(query, null);
+            wire = query.toWire();
+        } else {
+            wire = query.toWire();
+            if (!usePost) {
+                // RFC 8484, Section 4.1: GET requests should use ID 0
+                // to let HTTP caches in front of the resolver serve them
+                wire[0] = 0;
+                wire[1] = 0;
+            }
         }
 
-        final String encoded = Base64Compat.encodeURLToString(query.toWire());
-
         HttpURLConnection con = null;
         try {
-            final URL url = new URL(host + "?dns=" + encoded);
-            con = (HttpURLConnection) url.openConnection();
+            if (usePost) {
+                con = (HttpURLConnection) endpoint().openConnection();
+                con.setRequestMethod("POST");
+                con.setDoOutput(true);
+                con.setFixedLengthStreamingMode(wire.length);
+                con.setRequestProperty("Content-Type", "application/dns-message");
+            } else {
+                final URL url = new URL(host + "?dns=" + Base64Compat.encodeURLToString(wire));
+                con = (HttpURLConnection) url.openConnection();
+                con.setRequestMethod("GET");
+            }
 
-            con.setRequestMethod("GET");
             con.setRequestProperty("User-Agent", "Java client");
-            con.setRequestProperty("content-type", "application/dns-message");
+            con.setRequestProperty("Accept", "application/dns-message");
+            con.setUseCaches(false);
             con.setConnectTimeout(timeout);
-            //con.setDoOutput(true);
+            con.setReadTimeout(timeout);
+
+            if (usePost) {
+                try (OutputStream out = con.getOutputStream()) {
+                    out.write(wire);
+                }
+            }
 
             final int rc = con.getResponseCode();
-            final byte[] buf = new byte[65535];
-            con.getInputStream().read(buf);
 
             final Message response;
             if (rc >= 200 && rc < 300) {
-                response = new Message(buf);
-                verifyTSIG(query, response, buf, tsig);
+                final int length;
+                // The connection is not disconnected: once the body is fully read and closed,
+                // it returns to the keep-alive pool and the next query skips TCP and TLS handshakes
+                try (InputStream in = con.getInputStream()) {
+                    length = readBody(in, con.getContentLength());
+                }
+                final byte[] buf = BUFFER.get();
+                response = new Message(ByteBuffer.wrap(buf, 0, length));
+                verifyTSIG(query, response, buf, length, tsig);
+                response.getHeader().setID(id);
             } else {
+                drain(con.getErrorStream());
                 response = new Message(0);
                 response.getHeader().setRcode(Rcode.SERVFAIL);
             }
             return response;
         } catch (SocketTimeoutException ex) {
+            // The connection is in an unknown state and must not be reused
+            if (con != null) {
+                con.disconnect();
+            }
             throw new IOException(
                     "Query "
                             + query.getHeader().getID()
@@ -134,24 +236,92 @@ public class LegacyDohResolver implements Resolver {
                             + Type.string(query.getQuestion().getType())
                             + " timed out",
             ex);
-        } finally {
+        } catch (IOException ex) {
             if (con != null) {
                 con.disconnect();
             }
+            throw ex;
         }
     }
 
     @Override
-    public Object sendAsync(Message query, ResolverListener listener) {
-        throw new UnsupportedOperationException("Not implemented");
+    public Object sendAsync(final Message query, final ResolverListener listener) {
+        final Object id = new Object();
+        ASYNC_EXECUTOR.execute(() -> {
+            final Message response;
+            try {
+                response = send(query);
+            } catch (Exception ex) {
+                listener.handleException(id, ex);
+                return;
+            }
+            listener.receiveMessage(id, response);
+        });
+        return id;
+    }
+
+    private URL endpoint() throws MalformedURLException {
+        if (endpoint == null) {
+            endpoint = new URL(host);
+        }
+        return endpoint;
+    }
+
+    /**
+     * Reads the response body into the thread-local buffer
+     *
+     * The buffer is reused by subsequent queries on the same thread,
+     * so it must be parsed before the next call
+     *
+     * @param contentLength - body length or -1 if it is unknown
+     * @return body length
+     */
+    private static int readBody(InputStream in, int contentLength) throws IOException {
+        if (contentLength > MAX_MESSAGE_SIZE) {
+            throw new IOException("DoH response is too large: " + contentLength + " bytes");
+        }
+        byte[] buf = BUFFER.get();
+        if (contentLength > buf.length) {
+            buf = new byte[contentLength];
+            BUFFER.set(buf);
+        }
+
+        final int limit = contentLength >= 0 ? contentLength : MAX_MESSAGE_SIZE;
+        int length = 0;
+        int read;
+        while (length < limit) {
+            if (length == buf.length) {
+                // Chunked response without Content-Length
+                buf = Arrays.copyOf(buf, Math.min(buf.length * 2, MAX_MESSAGE_SIZE));
+                BUFFER.set(buf);
+            }
+            if ((read = in.read(buf, length, Math.min(buf.length, limit) - length)) == -1) break;
+            length += read;
+        }
+        if (contentLength >= 0 && length < contentLength) {
+            throw new IOException("DoH response is truncated: " + length + " of " + contentLength + " bytes");
+        }
+        return length;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) return;
+        try {
+            final byte[] buf = BUFFER.get();
+            while (in.read(buf) != -1) {
+                // Consume the body to keep the connection alive
+            }
+        } finally {
+            in.close();
+        }
     }
 
-    private void verifyTSIG(Message query, Message response, byte[] b, TSIG tsig) {
+    private void verifyTSIG(Message query, Message response, byte[] b, int length, TSIG tsig) {
         if (tsig == null) {
             return;
         }
 
-        int error = tsig.verify(response, b, query.getTSIG());
+        int error = tsig.verify(response, b, length, query.getTSIG());
         log.debug(
                 "TSIG verify for query {}, {}/{}: {}",
                 query.getHeader().getID(),
@@ -0,0 +1,54 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns;
+
+import io.github.krlvm.powertunnel.sdk.proxy.DNSRequest;
+
+import java.net.InetSocketAddress;
+
+class BenchmarkRequest implements DNSRequest {
+
+    private final String host;
+    private final int port;
+    private InetSocketAddress response;
+
+    BenchmarkRequest(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public String getHost() {
+        return host;
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public InetSocketAddress getResponse() {
+        return response;
+    }
+
+    @Override
+    public void setResponse(InetSocketAddress response) {
+        this.response = response;
+    }
+}
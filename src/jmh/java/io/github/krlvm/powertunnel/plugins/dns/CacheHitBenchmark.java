@@ -0,0 +1,69 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DNSListener#onResolutionRequest} answered from the cache
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheHitBenchmark {
+
+    private StubDNSServer server;
+    private DNSListener listener;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new StubDNSServer();
+        listener = ResolutionBenchmark.createListener(ResolutionBenchmark.createEngine(server, "udp"));
+        listener.onResolutionRequest(new BenchmarkRequest("cached.bench", 443));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public InetSocketAddress singleThread() {
+        return resolve();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public InetSocketAddress fourThreads() {
+        return resolve();
+    }
+
+    private InetSocketAddress resolve() {
+        final BenchmarkRequest request = new BenchmarkRequest("cached.bench", 443);
+        listener.onResolutionRequest(request);
+        return request.getResponse();
+    }
+}
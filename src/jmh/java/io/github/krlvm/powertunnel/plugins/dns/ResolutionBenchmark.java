@@ -0,0 +1,105 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns;
+
+import io.github.krlvm.powertunnel.plugins.dns.cache.DNSCache;
+import io.github.krlvm.powertunnel.plugins.dns.cache.NegativeCache;
+import io.github.krlvm.powertunnel.plugins.dns.metrics.DNSMetrics;
+import org.openjdk.jmh.annotations.*;
+import org.xbill.DNS.DohResolver;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.SimpleResolver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link DNSListener#onResolutionRequest} end-to-end,
+ * percentiles are reported by the sample time mode
+ *
+ * <pre>./gradlew jmh -Pjmh.includes=ResolutionBenchmark</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResolutionBenchmark {
+
+    @Param({ "udp", "tcp", "doh" })
+    public String transport;
+
+    private StubDNSServer server;
+    private DNSListener listener;
+    private final AtomicLong counter = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new StubDNSServer();
+        listener = createListener(createEngine(server, transport));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    /**
+     * Every hostname is new, so each request goes upstream,
+     * cache hits do not depend on the transport and are measured by {@link CacheHitBenchmark}
+     */
+    @Benchmark
+    public InetSocketAddress cacheMiss() {
+        final BenchmarkRequest request = new BenchmarkRequest("host" + counter.incrementAndGet() + ".bench", 443);
+        listener.onResolutionRequest(request);
+        return request.getResponse();
+    }
+
+    static ResolutionEngine createEngine(StubDNSServer server, String transport) throws IOException {
+        final Resolver resolver;
+        if ("doh".equals(transport)) {
+            resolver = new DohResolver(server.getDohUrl());
+        } else {
+            final boolean tcp = "tcp".equals(transport);
+            resolver = new SimpleResolver(new InetSocketAddress("127.0.0.1", server.getPort(tcp)));
+            resolver.setTCP(tcp);
+        }
+        return new ResolutionEngine(
+                resolver,
+                new DNSCache(4096, 0, 86400, 0, 0),
+                new NegativeCache(1024, 300),
+                null,
+                IPPreference.IPV4,
+                new AddressSelector(AddressSelector.Mode.FIRST),
+                new DNSMetrics(),
+                4, 5000, 256
+        );
+    }
+
+    static DNSListener createListener(ResolutionEngine engine) {
+        return new DNSListener(
+                new AtomicReference<>(new ResolverPipeline(engine, null, null, null, Collections.emptyList(), "", "")),
+                new DNSMetrics()
+        );
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns;
+
+import com.sun.net.httpserver.HttpServer;
+import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
+
+import java.io.*;
+import java.net.*;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process DNS server answering every A and AAAA query,
+ * serves plain DNS over UDP and TCP and DNS-over-HTTPS without TLS
+ */
+class StubDNSServer implements Closeable {
+
+    private static final long TTL = 300;
+
+    private final DatagramSocket udp;
+    private final ServerSocket tcp;
+    private final HttpServer http;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        final Thread thread = new Thread(r, "stub-dns");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    StubDNSServer() throws IOException {
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        this.udp = new DatagramSocket(0, loopback);
+        this.tcp = new ServerSocket(0, 128, loopback);
+        this.http = HttpServer.create(new InetSocketAddress(loopback, 0), 128);
+        this.http.createContext("/dns-query", exchange -> {
+            final byte[] query;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                query = readAll(exchange.getRequestBody());
+            } else {
+                final String parameter = exchange.getRequestURI().getRawQuery();
+                query = Base64.getUrlDecoder().decode(parameter.substring(parameter.indexOf('=') + 1));
+            }
+            final byte[] response = answer(query);
+            exchange.getResponseHeaders().set("Content-Type", "application/dns-message");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        });
+        this.http.setExecutor(executor);
+
+        executor.execute(this::serveUdp);
+        executor.execute(this::acceptTcp);
+        http.start();
+    }
+
+    int getPort(boolean tcp) {
+        return tcp ? this.tcp.getLocalPort() : udp.getLocalPort();
+    }
+
+    String getDohUrl() {
+        return "http://127.0.0.1:" + http.getAddress().getPort() + "/dns-query";
+    }
+
+    private void serveUdp() {
+        final byte[] buffer = new byte[512];
+        while (!udp.isClosed()) {
+            try {
+                final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                udp.receive(packet);
+                final byte[] query = new byte[packet.getLength()];
+                System.arraycopy(packet.getData(), 0, query, 0, query.length);
+                final byte[] response = answer(query);
+                udp.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+            } catch (IOException ignore) {}
+        }
+    }
+
+    private void acceptTcp() {
+        while (!tcp.isClosed()) {
+            try {
+                final Socket socket = tcp.accept();
+                executor.execute(() -> serveTcp(socket));
+            } catch (IOException ignore) {}
+        }
+    }
+
+    private void serveTcp(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            while (true) {
+                final byte[] query = new byte[in.readUnsignedShort()];
+                in.readFully(query);
+                final byte[] response = answer(query);
+                out.writeShort(response.length);
+                out.write(response);
+                out.flush();
+            }
+        } catch (IOException ignore) {}
+    }
+
+    static byte[] answer(byte[] wire) throws IOException {
+        final Message query = new Message(wire);
+        final Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.RA);
+        final Record question = query.getQuestion();
+        response.addRecord(question, Section.QUESTION);
+        if (question.getType() == Type.A) {
+            response.addRecord(new ARecord(question.getName(), DClass.IN, TTL, InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 })), Section.ANSWER);
+        } else if (question.getType() == Type.AAAA) {
+            response.addRecord(new AAAARecord(question.getName(), DClass.IN, TTL, InetAddress.getByName("fd00::1")), Section.ANSWER);
+        }
+        return response.toWire();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        udp.close();
+        try {
+            tcp.close();
+        } catch (IOException ignore) {}
+        http.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the address a connection should go to
+ * out of the full answer set of a hostname
+ */
+public class AddressSelector implements Closeable {
+
+    private static final int PROBE_TIMEOUT = 1000;
+    private static final int MAX_MEASURED = 4096;
+    private static final long MEASUREMENT_LIFETIME = TimeUnit.MINUTES.toMillis(5);
+
+    public enum Mode {
+        /** Always the first address, preferred family comes first */
+        FIRST,
+        /** Rotate through the answer set */
+        ROUND_ROBIN,
+        /**
+         * Address with the lowest connect time, measured by opening
+         * TCP connections to the destination servers in the background,
+         * the proxy offers no way to time the connections it makes
+         */
+        FASTEST
+    }
+
+    private final Mode mode;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    // Connect time in milliseconds, measured by active background probes
+    private final Map<InetAddress, Measurement> rtt = new ConcurrentHashMap<>();
+    private final Set<InetAddress> probing = ConcurrentHashMap.newKeySet();
+    private final ThreadPoolExecutor prober;
+
+    public AddressSelector(Mode mode) {
+        this.mode = mode;
+        if (mode == Mode.FASTEST) {
+            this.prober = new ThreadPoolExecutor(
+                    0, 2,
+                    30, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(),
+                    new DaemonThreadFactory("dns-probe")
+            );
+        } else {
+            this.prober = null;
+        }
+    }
+
+    public InetSocketAddress select(InetAddress[] addresses, int port) {
+        if (addresses.length == 1) return new InetSocketAddress(addresses[0], port);
+        switch (mode) {
+            case ROUND_ROBIN: {
+                final int index = (counter.getAndIncrement() & Integer.MAX_VALUE) % addresses.length;
+                return new InetSocketAddress(addresses[index], port);
+            }
+            case FASTEST: {
+                final long now = System.currentTimeMillis();
+                InetAddress best = null;
+                long bestRtt = Long.MAX_VALUE;
+                for (InetAddress address : addresses) {
+                    final Measurement measured = rtt.get(address);
+                    if (measured == null || measured.expiresAt < now) {
+                        probe(address, port);
+                    }
+                    if (measured != null && measured.rtt < bestRtt) {
+                        best = address;
+                        bestRtt = measured.rtt;
+                    }
+                }
+                // Until the probes finish, fall back to the preferred family order
+                return new InetSocketAddress(best != null ? best : addresses[0], port);
+            }
+            default:
+                return new InetSocketAddress(addresses[0], port);
+        }
+    }
+
+    private void probe(InetAddress address, int port) {
+        if (!probing.add(address)) return;
+        try {
+            prober.execute(() -> measure(address, port));
+        } catch (RejectedExecutionException ex) {
+            // All probe threads are busy, try again on the next selection
+            probing.remove(address);
+        }
+    }
+
+    private void measure(InetAddress address, int port) {
+        final long start = System.nanoTime();
+        long measured;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(address, port), PROBE_TIMEOUT);
+            measured = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } catch (IOException ex) {
+            // Unreachable addresses are sorted last
+            measured = Long.MAX_VALUE - 1;
+        } finally {
+            probing.remove(address);
+        }
+        if (rtt.size() >= MAX_MEASURED) rtt.clear();
+        rtt.put(address, new Measurement(measured, System.currentTimeMillis() + MEASUREMENT_LIFETIME));
+    }
+
+    @Override
+    public void close() {
+        if (prober != null) prober.shutdownNow();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    private static class Measurement {
+        private final long rtt;
+        private final long expiresAt;
+
+        private Measurement(long rtt, long expiresAt) {
+            this.rtt = rtt;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns;
+
+import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Addresses extracted from an upstream response
+ * with the smallest TTL along the CNAME chain
+ */
+public class DNSAnswer {
+
+    private static final int MAX_CNAME_CHAIN = 16;
+
+    private final InetAddress[] addresses;
+    private final long ttl;
+    private final int scope;
+
+    public DNSAnswer(InetAddress[] addresses, long ttl) {
+        this(addresses, ttl, 0);
+    }
+
+    /**
+     * @param scope - client subnet prefix length the answer is valid for (RFC 7871), 0 if it is valid for everyone
+     */
+    public DNSAnswer(InetAddress[] addresses, long ttl, int scope) {
+        this.addresses = addresses;
+        this.ttl = ttl;
+        this.scope = scope;
+    }
+
+    public InetAddress[] getAddresses() {
+        return addresses;
+    }
+
+    public long getTTL() {
+        return ttl;
+    }
+
+    public int getScope() {
+        return scope;
+    }
+
+    /**
+     * Merges answers for both address families, alternating
+     * between them and starting with the preferred one
+     * (RFC 8305, Section 4)
+     */
+    public static DNSAnswer interleave(DNSAnswer preferred, DNSAnswer fallback) {
+        final InetAddress[] first = preferred.addresses, second = fallback.addresses;
+        final InetAddress[] addresses = new InetAddress[first.length + second.length];
+        int i = 0, j = 0, k = 0;
+        while (i < first.length || j < second.length) {
+            if (i < first.length) addresses[k++] = first[i++];
+            if (j < second.length) addresses[k++] = second[j++];
+        }
+        return new DNSAnswer(addresses, Math.min(preferred.ttl, fallback.ttl), Math.max(preferred.scope, fallback.scope));
+    }
+
+    public static DNSAnswer parse(Message response, Name name, int type) throws UnknownHostException {
+        if (response.getRcode() == Rcode.NXDOMAIN) {
+            throw new NegativeAnswerException(name + ": NXDOMAIN", true, negativeTTL(response));
+        }
+        if (response.getRcode() != Rcode.NOERROR) {
+            throw new UnknownHostException(name + ": " + Rcode.string(response.getRcode()));
+        }
+
+        final List<Record> answers = response.getSection(Section.ANSWER);
+        final List<InetAddress> addresses = new ArrayList<>();
+        long ttl = Long.MAX_VALUE;
+
+        Name current = name;
+        for (int hops = 0; hops < MAX_CNAME_CHAIN; hops++) {
+            Name next = null;
+            for (Record record : answers) {
+                if (!record.getName().equals(current)) continue;
+                if (record.getType() == type) {
+                    addresses.add(type == Type.AAAA
+                            ? ((AAAARecord) record).getAddress()
+                            : ((ARecord) record).getAddress());
+                    ttl = Math.min(ttl, record.getTTL());
+                } else if (record.getType() == Type.CNAME) {
+                    next = ((CNAMERecord) record).getTarget();
+                    ttl = Math.min(ttl, record.getTTL());
+                }
+            }
+            if (!addresses.isEmpty() || next == null) break;
+            current = next;
+        }
+
+        if (addresses.isEmpty()) {
+            throw new NegativeAnswerException(name + ": no " + Type.string(type) + " records", false, negativeTTL(response));
+        }
+        return new DNSAnswer(addresses.toArray(new InetAddress[0]), ttl, scope(response));
+    }
+
+    private static int scope(Message response) {
+        final OPTRecord opt = response.getOPT();
+        if (opt == null) return 0;
+        for (EDNSOption option : opt.getOptions(EDNSOption.Code.CLIENT_SUBNET)) {
+            return ((ClientSubnetOption) option).getScopePrefixLength();
+        }
+        return 0;
+    }
+
+    /**
+     * RFC 2308, Section 5: negative answers are cached
+     * for the smaller of the SOA TTL and SOA MINIMUM field
+     *
+     * @return TTL in seconds or -1 if the response has no SOA record
+     */
+    private static long negativeTTL(Message response) {
+        for (Record record : response.getSection(Section.AUTHORITY)) {
+            if (record.getType() == Type.SOA) {
+                return Math.min(record.getTTL(), ((SOARecord) record).getMinimum());
+            }
+        }
+        return -1;
+    }
+}
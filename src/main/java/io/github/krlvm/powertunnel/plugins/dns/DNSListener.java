@@ -17,30 +17,58 @@
 
 package io.github.krlvm.powertunnel.plugins.dns;
 
+import io.github.krlvm.powertunnel.plugins.dns.filter.Blocklist;
+import io.github.krlvm.powertunnel.plugins.dns.metrics.DNSMetrics;
 import io.github.krlvm.powertunnel.sdk.proxy.DNSRequest;
-import io.github.krlvm.powertunnel.sdk.proxy.DNSResolver;
 import io.github.krlvm.powertunnel.sdk.proxy.ProxyAdapter;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class DNSListener extends ProxyAdapter {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DNSListener.class);
 
-    private final DNSResolver resolver;
+    private final AtomicReference<ResolverPipeline> pipeline;
+    private final DNSMetrics metrics;
 
-    public DNSListener(DNSResolver resolver) {
-        this.resolver = resolver;
+    /**
+     * @param pipeline - current resolver pipeline, it is replaced when the configuration changes
+     */
+    public DNSListener(AtomicReference<ResolverPipeline> pipeline, DNSMetrics metrics) {
+        this.pipeline = pipeline;
+        this.metrics = metrics;
     }
 
     @Override
     public Boolean onResolutionRequest(@NotNull DNSRequest request) {
         if(request.getResponse() != null) return super.onResolutionRequest(request);
+        // The whole request is served by the same pipeline
+        final ResolverPipeline pipeline = this.pipeline.get();
+        if(pipeline == null) return super.onResolutionRequest(request);
+
+        final Blocklist blocklist = pipeline.getBlocklist();
+        if (blocklist != null) {
+            final InetAddress[] local = blocklist.lookup(request.getHost());
+            if (local != null) {
+                metrics.recordBlocked();
+                // The proxy would connect to 0.0.0.0, which reaches this host,
+                // so blocked hostnames fail here in both modes
+                if (local.length == 0 || local[0].isAnyLocalAddress()) {
+                    LOGGER.debug("Hostname '{}' is blocked", request.getHost());
+                    return false;
+                }
+                request.setResponse(new InetSocketAddress(local[0], request.getPort()));
+                return true;
+            }
+        }
         try {
-            request.setResponse(resolver.resolve(request.getHost(), request.getPort()));
+            request.setResponse(pipeline.getEngine().resolve(request.getHost(), request.getPort()));
             return true;
         } catch (UnknownHostException ex) {
             LOGGER.debug("Failed to resolve hostname '{}': {}", request.getHost(), ex.getMessage(), ex);
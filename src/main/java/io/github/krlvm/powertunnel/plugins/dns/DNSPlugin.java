@@ -17,6 +17,21 @@
 
 package io.github.krlvm.powertunnel.plugins.dns;
 
+import io.github.krlvm.powertunnel.plugins.dns.cache.CacheEntry;
+import io.github.krlvm.powertunnel.plugins.dns.cache.CacheSnapshot;
+import io.github.krlvm.powertunnel.plugins.dns.cache.DNSCache;
+import io.github.krlvm.powertunnel.plugins.dns.cache.NegativeCache;
+import io.github.krlvm.powertunnel.plugins.dns.filter.Blocklist;
+import io.github.krlvm.powertunnel.plugins.dns.metrics.DNSMetrics;
+import io.github.krlvm.powertunnel.plugins.dns.metrics.MetricsServer;
+import io.github.krlvm.powertunnel.plugins.dns.resolver.AdaptiveResolver;
+import io.github.krlvm.powertunnel.plugins.dns.resolver.DNSSECResolver;
+import io.github.krlvm.powertunnel.plugins.dns.resolver.DotResolver;
+import io.github.krlvm.powertunnel.plugins.dns.resolver.MeasuredResolver;
+import io.github.krlvm.powertunnel.plugins.dns.resolver.MultiplexedResolver;
+import io.github.krlvm.powertunnel.plugins.dns.resolver.RacingResolver;
+import io.github.krlvm.powertunnel.plugins.dns.resolver.UdpMultiplexer;
+import io.github.krlvm.powertunnel.plugins.dns.server.LocalDNSServer;
 import io.github.krlvm.powertunnel.sdk.configuration.Configuration;
 import io.github.krlvm.powertunnel.sdk.plugin.PowerTunnelPlugin;
 import io.github.krlvm.powertunnel.sdk.proxy.ProxyServer;
@@ -26,20 +41,207 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xbill.DNS.*;
 import org.xbill.DNS.config.AndroidResolverConfigProvider;
-import org.xbill.DNS.dnssec.ValidatingResolver;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class DNSPlugin extends PowerTunnelPlugin {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DNSPlugin.class);
 
+    // Configuration values the resolver pipeline and the caches are built from
+    private static final String[] PIPELINE_KEYS = {
+            "dns_preset", "dns", "upstream_mode", "race_fanout",
+            "dnssec", "dnssec_trust_anchors", "dnssec_threads",
+            "doh_method", "allow_insecure", "ignore_system_hosts", "hosts_file",
+            "ip_preference", "address_selection",
+            "blocklist_files", "blocklist_mode", "blocklist_reload",
+            "resolver_execution", "resolver_threads", "resolver_timeout", "resolver_max_concurrency", "udp_sockets",
+            "edns_payload_size", "edns_client_subnet"
+    };
+    private static final String[] CACHE_KEYS = {
+            // Cached answers hold the address families of the preference
+            "ip_preference",
+            "cache_size", "cache_min_ttl", "cache_max_ttl", "cache_stale_window", "prefetch_hits",
+            "negative_cache_size", "negative_cache_max_ttl",
+            "cache_snapshot", "cache_snapshot_file", "cache_snapshot_interval"
+    };
+    private static final String[] SERVER_KEYS = { "local_server", "local_server_address" };
+
+    // Counters are kept across proxy restarts
+    private final DNSMetrics metrics = new DNSMetrics();
+    private MetricsServer metricsServer;
+
+    private final AtomicReference<ResolverPipeline> pipeline = new AtomicReference<>();
+    private UdpMultiplexer multiplexer;
+    private LocalDNSServer localServer;
+    private CacheSnapshot snapshot;
+
+    private ScheduledExecutorService reloader;
+    // Configuration the pipeline was last built from, successfully or not
+    private String signature;
+    // Configuration the local server was last started with
+    private String serverSignature;
+
     @Override
     public void onProxyInitialization(@NotNull ProxyServer proxy) {
         if(!validateAndroidVersion()) return;
+        // Proxy may be restarted, release everything of the previous run
+        release();
+
         final Configuration configuration = readConfiguration();
 
+        if (getServer().getPlatform() == PowerTunnelPlatform.ANDROID) {
+            AndroidResolverConfigProvider.dnsServers = proxy.getDNSServers();
+            AndroidResolverConfigProvider.domainsSearchPath = proxy.getDNSDomainsSearchPath();
+        }
+
+        signature = signature(configuration, PIPELINE_KEYS) + signature(configuration, CACHE_KEYS);
+        final ResolverPipeline created = createPipeline(configuration, null);
+        pipeline.set(created);
+        // Requests fall through to the default resolver while there is no pipeline
+        registerProxyListener(new DNSListener(pipeline, metrics));
+
+        if (configuration.getBoolean("metrics_jmx", false) && !metrics.registerMBean()) {
+            LOGGER.warn("JMX is not available, metrics are not registered");
+        }
+        final int metricsPort = configuration.getInt("metrics_port", 0);
+        if (metricsPort > 0) {
+            try {
+                metricsServer = new MetricsServer(metrics, metricsPort);
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to start metrics server on port {}: {}", metricsPort, ex.getMessage(), ex);
+            }
+        }
+
+        startSnapshot(configuration, created != null ? created.getEngine().getCache() : null, true);
+
+        serverSignature = signature(configuration, SERVER_KEYS);
+        startLocalServer(configuration);
+
+        final int reloadInterval = configuration.getInt("config_reload_interval", 10);
+        if (reloadInterval > 0) {
+            reloader = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("dns-config-reload"));
+            reloader.scheduleWithFixedDelay(this::reload, reloadInterval, reloadInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Rebuilds the resolver pipeline if the configuration has changed,
+     * queries in flight finish on the previous pipeline
+     */
+    private void reload() {
+        final ResolverPipeline current = pipeline.get();
+        final Configuration configuration;
+        try {
+            configuration = readConfiguration();
+        } catch (RuntimeException ex) {
+            LOGGER.debug("Failed to read configuration: {}", ex.getMessage(), ex);
+            return;
+        }
+        final String serverSignature = signature(configuration, SERVER_KEYS);
+        if (!serverSignature.equals(this.serverSignature)) {
+            this.serverSignature = serverSignature;
+            try {
+                startLocalServer(configuration);
+                LOGGER.info("Local DNS server configuration is reloaded");
+            } catch (RuntimeException ex) {
+                LOGGER.warn("Failed to apply the new local DNS server configuration: {}", ex.getMessage(), ex);
+            }
+        }
+
+        final String signature = signature(configuration, PIPELINE_KEYS) + signature(configuration, CACHE_KEYS);
+        if (signature.equals(this.signature)) return;
+        this.signature = signature;
+
+        final ResolverPipeline next;
+        try {
+            next = createPipeline(configuration, current);
+        } catch (RuntimeException ex) {
+            // Keep the working pipeline until the configuration is fixed
+            LOGGER.warn("Failed to apply the new DNS configuration: {}", ex.getMessage(), ex);
+            return;
+        }
+        pipeline.set(next);
+        if (current != null) current.close();
+        final DNSCache cache = next != null ? next.getEngine().getCache() : null;
+        if (current == null || !current.getCacheSignature().equals(next != null ? next.getCacheSignature() : "")) {
+            startSnapshot(configuration, cache, false);
+        }
+        LOGGER.info("DNS configuration is reloaded");
+    }
+
+    /**
+     * @param previous - pipeline being replaced, its caches are carried over
+     * @return null if there is nothing to resolve with
+     */
+    private ResolverPipeline createPipeline(Configuration configuration, ResolverPipeline previous) {
+        // Sockets are shared by pipelines as long as their number is unchanged
+        final int udpSockets = configuration.getInt("udp_sockets", 4);
+        UdpMultiplexer multiplexer = udpSockets > 0 ? this.multiplexer : null;
+        boolean created = false;
+        if (udpSockets > 0 && (multiplexer == null || multiplexer.getSockets() != udpSockets)) {
+            try {
+                multiplexer = new UdpMultiplexer(udpSockets);
+                created = true;
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to open UDP sockets, falling back to a socket per query: {}", ex.getMessage(), ex);
+                multiplexer = null;
+            }
+        }
+
+        final ResolverPipeline pipeline;
+        try {
+            pipeline = createPipeline(configuration, previous, multiplexer);
+        } catch (RuntimeException ex) {
+            if (created) multiplexer.close();
+            throw ex;
+        }
+        if (this.multiplexer != multiplexer) {
+            // Queries in flight on the previous pipeline are given time to complete
+            if (this.multiplexer != null) this.multiplexer.close();
+            this.multiplexer = multiplexer;
+        }
+        return pipeline;
+    }
+
+    /**
+     * Closes whatever was built so far if the pipeline can't be completed
+     */
+    private ResolverPipeline createPipeline(Configuration configuration, ResolverPipeline previous,
+                                            UdpMultiplexer multiplexer) {
+        final List<Closeable> built = new ArrayList<>();
+        try {
+            return buildPipeline(configuration, previous, multiplexer, built);
+        } catch (RuntimeException ex) {
+            for (int i = built.size() - 1; i >= 0; i--) {
+                try {
+                    built.get(i).close();
+                } catch (IOException closeEx) {
+                    ex.addSuppressed(closeEx);
+                }
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * @param built - receives the resources to be closed if building fails
+     */
+    private ResolverPipeline buildPipeline(Configuration configuration, ResolverPipeline previous,
+                                           UdpMultiplexer multiplexer, List<Closeable> built) {
         String dns;
         final DNSPreset preset;
         try {
@@ -54,80 +256,368 @@ public class DNSPlugin extends PowerTunnelPlugin {
             dns = preset.getAddress();
         }
 
-        final boolean doh = dns.startsWith("https://")
-                || (configuration.getBoolean("allow_insecure", false) && dns.startsWith("http://"));
-        if (dns.startsWith("http://") && !doh) {
-            throw new DNSParseException("Please, enable insecure DNS requests to use Plain-HTTP DNS Resolver");
-        }
-
+        final boolean allowInsecure = configuration.getBoolean("allow_insecure", false);
+        final boolean usePost = configuration.get("doh_method", "get").equals("post");
         final boolean sec = configuration.getBoolean("dnssec", false);
         final boolean ignoreHosts = configuration.getBoolean("ignore_system_hosts", false);
-        System.setProperty("dnsjava.lookup.use_hosts_file", String.valueOf(!ignoreHosts));
 
-        if (dns.endsWith("/")) {
-            dns = dns.substring(0, dns.length() - 1);
+        final String clientSubnet = configuration.get("edns_client_subnet", "").trim();
+        final boolean detectSubnet = clientSubnet.equals("auto");
+        final EDNSConfiguration edns;
+        try {
+            edns = new EDNSConfiguration(
+                    configuration.getInt("edns_payload_size", 1232),
+                    sec ? ExtendedFlags.DO : 0,
+                    clientSubnet.isEmpty() || detectSubnet ? null : EDNSConfiguration.parseSubnet(clientSubnet)
+            );
+        } catch (IllegalArgumentException ex) {
+            throw new DNSParseException("Invalid EDNS configuration: " + ex.getMessage(), ex);
         }
 
-        if (getServer().getPlatform() == PowerTunnelPlatform.ANDROID) {
-            AndroidResolverConfigProvider.dnsServers = proxy.getDNSServers();
-            AndroidResolverConfigProvider.domainsSearchPath = proxy.getDNSDomainsSearchPath();
+        boolean doh = false;
+        final List<Resolver> upstreams = new ArrayList<>();
+        final List<Resolver> endpoints = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        for (String upstream : dns.split(",")) {
+            upstream = upstream.trim();
+            if (upstream.isEmpty()) continue;
+            if (upstream.endsWith("/")) {
+                upstream = upstream.substring(0, upstream.length() - 1);
+            }
+            final Resolver upstreamResolver = createResolver(upstream, allowInsecure, usePost, multiplexer);
+            if (upstreamResolver instanceof Closeable) built.add((Closeable) upstreamResolver);
+            doh |= upstreamResolver instanceof DohResolver;
+            endpoints.add(upstreamResolver);
+            names.add(upstream);
+            upstreams.add(new MeasuredResolver(upstreamResolver, metrics.upstream(upstream)));
         }
 
         Resolver resolver = null;
-        if(doh) {
-            resolver = new DohResolver(dns);
-        } else {
-            if(!dns.isEmpty()) {
-                if (!DNSParser.isIPv4(dns) && !DNSParser.isIPv4WithPort(dns) && !DNSParser.isIPv6(dns) && !DNSParser.isIPv6WithPort(dns)) {
-                    throw new DNSParseException("Invalid DNS address");
-                }
-                String address = dns;
-                int port = -1;
-                if (DNSParser.hasPort(address)) {
-                    Object[] split = DNSParser.splitAddress(address);
-                    if (split != null) {
-                        address = ((String) split[0]);
-                        port = ((int) split[1]);
-                    }
-                }
+        DNSSECResolver validator = null;
+        if (upstreams.size() == 1) {
+            resolver = upstreams.get(0);
+        } else if (upstreams.size() > 1) {
+            resolver = createMultiResolver(upstreams, configuration);
+        }
+        if(sec && !doh) {
+            if (resolver == null) {
                 try {
-                    resolver = new SimpleResolver(address);
-                    if (port != -1) resolver.setPort(port);
+                    resolver = new SimpleResolver();
+                    endpoints.add(resolver);
                 } catch (UnknownHostException ex) {
-                    throw new RuntimeException("Failed to initialize specified DNS Resolver: " + ex.getMessage(), ex);
+                    throw new RuntimeException("Failed to initialize default DNS Resolver: " + ex.getMessage(), ex);
                 }
             }
-            if(sec) {
-                if (resolver == null) {
-                    try {
-                        resolver = new SimpleResolver();
-                    } catch (UnknownHostException ex) {
-                        throw new RuntimeException("Failed to initialize default DNS Resolver: " + ex.getMessage(), ex);
-                    }
-                }
-                resolver = new ValidatingResolver(resolver);
+            final String trustAnchors = configuration.get("dnssec_trust_anchors", "").trim();
+            try {
+                validator = new DNSSECResolver(
+                        resolver,
+                        trustAnchors.isEmpty() ? null : Paths.get(trustAnchors),
+                        getDNSSECThreads(configuration),
+                        metrics
+                );
+            } catch (IOException ex) {
+                throw new DNSParseException("Failed to load DNSSEC trust anchors: " + ex.getMessage(), ex);
+            } catch (IllegalArgumentException ex) {
+                throw new DNSParseException("Invalid DNSSEC configuration: " + ex.getMessage(), ex);
             }
+            built.add(validator);
+            resolver = validator;
         }
 
-        if(resolver == null) return;
+        if(resolver == null) return null;
+        // The validator sets its own EDNS options on the resolver it wraps, they are overridden here
+        for (Resolver endpoint : endpoints) {
+            edns.apply(endpoint);
+        }
         LOGGER.info("DNS Resolver: '{}' [dnsOverHttps={}, dnsSec={}, ignoreHosts={}]", dns, doh, sec, ignoreHosts);
 
-        final Resolver pResolver = resolver;
-        registerProxyListener(new DNSListener((host, port) -> {
-            final Lookup lookup;
+        final IPPreference ipPreference;
+        final AddressSelector.Mode selectionMode;
+        try {
+            ipPreference = IPPreference.valueOf(configuration.get("ip_preference", "ipv4").toUpperCase());
+            selectionMode = AddressSelector.Mode.valueOf(configuration.get("address_selection", "first").toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new DNSParseException("Invalid address selection preferences");
+        }
+
+        final String cacheSignature = signature(configuration, CACHE_KEYS);
+        final DNSCache cache;
+        final NegativeCache negativeCache;
+        if (previous != null && previous.getCacheSignature().equals(cacheSignature)) {
+            // Queries still in flight on the previous pipeline fill the same caches
+            cache = previous.getEngine().getCache();
+            negativeCache = previous.getEngine().getNegativeCache();
+        } else {
+            cache = createCache(configuration);
+            negativeCache = createNegativeCache(configuration);
+            // Answers of the other address families are not carried over
+            final DNSCache previousCache = previous != null && previous.getEngine().getPreference() == ipPreference
+                    ? previous.getEngine().getCache() : null;
+            if (cache != null && previousCache != null) {
+                for (Map.Entry<String, CacheEntry> entry : previousCache.snapshot().entrySet()) {
+                    cache.restore(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        HostsResolver hosts = null;
+        if (!ignoreHosts) {
+            final String hostsFile = configuration.get("hosts_file", "").trim();
+            hosts = new HostsResolver(hostsFile.isEmpty() ? HostsResolver.getSystemHostsFile() : Paths.get(hostsFile));
+            built.add(hosts);
+            hosts.load();
+        }
+
+        final AddressSelector selector = new AddressSelector(selectionMode);
+        built.add(selector);
+        final ExecutorService executor = createExecutor(configuration);
+        built.add(executor::shutdown);
+        final ResolutionEngine engine;
+        try {
+            engine = new ResolutionEngine(
+                    resolver, cache, negativeCache,
+                    hosts,
+                    ipPreference, selector, metrics,
+                    clientSubnet.isEmpty() ? null : edns, executor,
+                    configuration.getInt("resolver_timeout", 5000),
+                    configuration.getInt("resolver_max_concurrency", 256)
+            );
+        } catch (IllegalArgumentException ex) {
+            throw new DNSParseException("Invalid DNS resolver configuration: " + ex.getMessage(), ex);
+        }
+
+        final Blocklist blocklist = createBlocklist(configuration);
+        if (blocklist != null) built.add(blocklist);
+        // Watchers are started last, nothing is left running if the configuration is invalid
+        if (hosts != null) {
+            hosts.watch();
+        }
+        if (blocklist != null && configuration.getBoolean("blocklist_reload", true)) {
+            blocklist.watch();
+        }
+        if (validator != null) {
+            validator.preload();
+        }
+        if (detectSubnet) {
+            edns.detectSubnet();
+        }
+
+        final List<Closeable> resources = new ArrayList<>();
+        for (Resolver endpoint : endpoints) {
+            if (endpoint instanceof Closeable) resources.add((Closeable) endpoint);
+        }
+
+        metrics.bind(engine);
+        metrics.retainUpstreams(names);
+        return new ResolverPipeline(
+                engine, validator, blocklist, hosts, resources,
+                signature(configuration, PIPELINE_KEYS), cacheSignature
+        );
+    }
+
+    private void startSnapshot(Configuration configuration, DNSCache cache, boolean restore) {
+        if (snapshot != null) {
+            snapshot.stop();
+            snapshot = null;
+        }
+        if (cache == null || !configuration.getBoolean("cache_snapshot", false)) return;
+        snapshot = new CacheSnapshot(
+                Paths.get(configuration.get("cache_snapshot_file", "dns-cache.bin")),
+                cache
+        );
+        if (restore) {
+            final int restored = snapshot.load();
+            LOGGER.info("Restored {} entries from DNS cache snapshot", restored);
+        }
+        snapshot.start(Math.max(configuration.getInt("cache_snapshot_interval", 300), 10));
+    }
+
+    private void release() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+            reloader = null;
+        }
+        final ResolverPipeline previous = pipeline.getAndSet(null);
+        if (previous != null) {
+            previous.close();
+        }
+        if (snapshot != null) {
+            // Persist the cache of the previous run
+            snapshot.stop();
+            snapshot = null;
+        }
+        if (metricsServer != null) {
             try {
-                lookup = new Lookup(host, Type.A);
-            } catch (TextParseException ex) {
-                throw new UnknownHostException();
+                metricsServer.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to stop metrics server: {}", ex.getMessage(), ex);
+            }
+            metricsServer = null;
+        }
+        if (localServer != null) {
+            localServer.close();
+            localServer = null;
+        }
+        if (multiplexer != null) {
+            multiplexer.close();
+            multiplexer = null;
+        }
+        signature = null;
+        serverSignature = null;
+    }
+
+    /**
+     * Stops the running local server and starts a new one if it is enabled
+     */
+    private void startLocalServer(Configuration configuration) {
+        // Invalid address leaves the running server untouched
+        final InetSocketAddress address = configuration.getBoolean("local_server", false)
+                ? getLocalServerAddress(configuration) : null;
+        if (localServer != null) {
+            localServer.close();
+            localServer = null;
+        }
+        if (address != null) {
+            localServer = createLocalServer(address);
+        }
+    }
+
+    private static InetSocketAddress getLocalServerAddress(Configuration configuration) {
+        final UpstreamAddress address = UpstreamAddress.parse(configuration.get("local_server_address", "127.0.0.1:5353").trim());
+        if (address.getScheme() != UpstreamAddress.Scheme.UDP || !address.isIPAddress()) {
+            throw new DNSParseException("Local DNS server address must be an IP address with an optional port");
+        }
+        return address.toSocketAddress();
+    }
+
+    private LocalDNSServer createLocalServer(InetSocketAddress address) {
+        try {
+            return new LocalDNSServer(pipeline, metrics, address);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to start local DNS server on {}: {}", address, ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    private static String signature(Configuration configuration, String[] keys) {
+        final StringBuilder builder = new StringBuilder();
+        for (String key : keys) {
+            builder.append(key).append('=').append(configuration.get(key, "")).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static Resolver createResolver(String dns, boolean allowInsecure, boolean usePost, UdpMultiplexer multiplexer) {
+        final UpstreamAddress address = UpstreamAddress.parse(dns);
+        if (address.getScheme() == UpstreamAddress.Scheme.HTTP && !allowInsecure) {
+            throw new DNSParseException("Please, enable insecure DNS requests to use Plain-HTTP DNS Resolver");
+        }
+        switch (address.getScheme()) {
+            case HTTP:
+            case HTTPS: {
+                final DohResolver resolver = new DohResolver(address.getUrl());
+                resolver.setUsePost(usePost);
+                return resolver;
             }
-            lookup.setResolver(pResolver);
-            final Record[] records = lookup.run();
-            if (lookup.getResult() == Lookup.SUCCESSFUL) {
-                return new InetSocketAddress(((ARecord) records[0]).getAddress(), port);
-            } else {
-                throw new UnknownHostException();
+            case TLS:
+                return new DotResolver(address.getHost(), address.getPort());
+            default: {
+                if (!address.isIPAddress()) {
+                    throw new DNSParseException("Invalid DNS address");
+                }
+                if (multiplexer != null && address.getScheme() == UpstreamAddress.Scheme.UDP) {
+                    return new MultiplexedResolver(multiplexer, address.toSocketAddress());
+                }
+                final SimpleResolver resolver = new SimpleResolver(address.toSocketAddress());
+                resolver.setTCP(address.getScheme() == UpstreamAddress.Scheme.TCP);
+                return resolver;
             }
-        }));
+        }
+    }
+
+    private static Resolver createMultiResolver(List<Resolver> upstreams, Configuration configuration) {
+        final String mode = configuration.get("upstream_mode", "failover");
+        try {
+            switch (mode) {
+                case "failover":
+                    return new ExtendedResolver(upstreams);
+                case "race":
+                    return new RacingResolver(upstreams, configuration.getInt("race_fanout", 2));
+                case "adaptive":
+                    return new AdaptiveResolver(upstreams);
+                default:
+                    throw new DNSParseException("Invalid upstream mode: " + mode);
+            }
+        } catch (IllegalArgumentException ex) {
+            throw new DNSParseException("Invalid upstream configuration: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static ExecutorService createExecutor(Configuration configuration) {
+        switch (configuration.get("resolver_execution", "pool")) {
+            case "pool":
+                return ResolutionEngine.createThreadPool(configuration.getInt("resolver_threads", 4));
+            case "virtual": {
+                // Virtual threads are available since JDK 21, never on Android
+                final ExecutorService executor = VirtualThreads.newExecutor("dns-resolver");
+                if (executor != null) return executor;
+                LOGGER.warn("Virtual threads are not supported by this Java version, using a thread pool");
+                return ResolutionEngine.createThreadPool(configuration.getInt("resolver_threads", 4));
+            }
+            default:
+                throw new DNSParseException("Invalid resolver execution mode");
+        }
+    }
+
+    private static int getDNSSECThreads(Configuration configuration) {
+        final int threads = configuration.getInt("dnssec_threads", 0);
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    private static DNSCache createCache(Configuration configuration) {
+        final int size = configuration.getInt("cache_size", 4096);
+        if (size <= 0) return null;
+        try {
+            return new DNSCache(
+                    size,
+                    configuration.getInt("cache_min_ttl", 0),
+                    configuration.getInt("cache_max_ttl", 86400),
+                    configuration.getInt("cache_stale_window", 3600),
+                    configuration.getInt("prefetch_hits", 3)
+            );
+        } catch (IllegalArgumentException ex) {
+            throw new DNSParseException("Invalid DNS cache configuration: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static NegativeCache createNegativeCache(Configuration configuration) {
+        final int size = configuration.getInt("negative_cache_size", 1024);
+        if (size <= 0) return null;
+        try {
+            return new NegativeCache(size, configuration.getInt("negative_cache_max_ttl", 300));
+        } catch (IllegalArgumentException ex) {
+            throw new DNSParseException("Invalid negative DNS cache configuration: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static Blocklist createBlocklist(Configuration configuration) {
+        final List<Path> files = new ArrayList<>();
+        for (String file : configuration.get("blocklist_files", "").split(",")) {
+            file = file.trim();
+            if (!file.isEmpty()) files.add(Paths.get(file));
+        }
+        if (files.isEmpty()) return null;
+
+        final Blocklist.Mode mode;
+        try {
+            mode = Blocklist.Mode.valueOf(configuration.get("blocklist_mode", "null").toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new DNSParseException("Invalid blocklist mode");
+        }
+        final Blocklist blocklist = new Blocklist(files, mode);
+        blocklist.load();
+        return blocklist;
     }
 
     private static boolean validateAndroidVersion() {
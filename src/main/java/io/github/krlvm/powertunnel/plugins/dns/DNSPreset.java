@@ -23,9 +23,11 @@ public enum DNSPreset {
 
     GOOGLE("8.8.8.8"),
     GOOGLE_DOH("https://8.8.8.8/dns-query"),
+    GOOGLE_DOT("tls://8.8.8.8"),
 
     CLOUDFLARE("1.1.1.1"),
-    CLOUDFLARE_DOH("https://1.1.1.1/dns-query");
+    CLOUDFLARE_DOH("https://1.1.1.1/dns-query"),
+    CLOUDFLARE_DOT("tls://1.1.1.1");
 
 
 
@@ -0,0 +1,174 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * EDNS0 options of queries sent upstream: UDP payload size and
+ * client subnet (RFC 7871) letting CDNs answer with nearby servers
+ *
+ * Client subnet is either a fixed prefix or the public address
+ * of this host detected with a single query, it is truncated
+ * to /24 for IPv4 and /56 for IPv6 unless a prefix is given
+ */
+public class EDNSConfiguration {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EDNSConfiguration.class);
+
+    private static final int IPV4_PREFIX = 24;
+    private static final int IPV6_PREFIX = 56;
+
+    // Google authoritative servers answer this name with the address the query came from
+    private static final String WHOAMI_NAME = "o-o.myaddr.l.google.com.";
+    private static final String WHOAMI_SERVER = "216.239.32.10";
+
+    private final int payloadSize;
+    private final int flags;
+    private final List<Resolver> resolvers = new CopyOnWriteArrayList<>();
+
+    private volatile ClientSubnetOption subnet;
+    private volatile String subnetKey;
+
+    /**
+     * @param payloadSize - advertised UDP payload size
+     * @param flags - EDNS flags, like DNSSEC OK
+     * @param subnet - client subnet to send, null to send none or detect it later
+     */
+    public EDNSConfiguration(int payloadSize, int flags, @Nullable ClientSubnetOption subnet) {
+        if (payloadSize < 512 || payloadSize > 65535) throw new IllegalArgumentException("EDNS payload size must be in [512; 65535]");
+        this.payloadSize = payloadSize;
+        this.flags = flags;
+        setSubnet(subnet);
+    }
+
+    /**
+     * Configures the resolver and the options it will be given if the client subnet changes
+     */
+    public void apply(Resolver resolver) {
+        resolvers.add(resolver);
+        configure(resolver);
+    }
+
+    private void configure(Resolver resolver) {
+        final ClientSubnetOption subnet = this.subnet;
+        resolver.setEDNS(0, payloadSize, flags,
+                subnet != null ? Collections.singletonList(subnet) : Collections.emptyList());
+    }
+
+    /**
+     * Detects the public address of this host in the background
+     * and starts sending its subnet when it is known
+     */
+    public void detectSubnet() {
+        final Message query;
+        try {
+            query = Message.newQuery(Record.newRecord(Name.fromString(WHOAMI_NAME), Type.TXT, DClass.IN));
+        } catch (TextParseException ex) {
+            throw new AssertionError(ex);
+        }
+        final SimpleResolver resolver = new SimpleResolver(new InetSocketAddress(WHOAMI_SERVER, SimpleResolver.DEFAULT_PORT));
+        resolver.setTimeout(Duration.ofSeconds(5));
+        resolver.sendAsync(query).whenComplete((response, ex) -> {
+            final InetAddress address = ex == null ? parseWhoami(response) : null;
+            if (address == null) {
+                LOGGER.warn("Failed to detect public address, client subnet is not sent: {}",
+                        ex != null ? ex.getMessage() : "unexpected response");
+                return;
+            }
+            final int prefix = address instanceof Inet4Address ? IPV4_PREFIX : IPV6_PREFIX;
+            setSubnet(new ClientSubnetOption(prefix, Address.truncate(address, prefix)));
+            resolvers.forEach(this::configure);
+            LOGGER.info("Client subnet: {}", subnetKey);
+        });
+    }
+
+    private static InetAddress parseWhoami(Message response) {
+        for (Record record : response.getSection(Section.ANSWER)) {
+            if (record.getType() != Type.TXT) continue;
+            for (String value : ((TXTRecord) record).getStrings()) {
+                final InetAddress address = parseAddress(value);
+                if (address != null) return address;
+            }
+        }
+        return null;
+    }
+
+    private void setSubnet(ClientSubnetOption subnet) {
+        this.subnet = subnet;
+        this.subnetKey = subnet != null
+                ? subnet.getAddress().getHostAddress() + "/" + subnet.getSourcePrefixLength()
+                : null;
+    }
+
+    /**
+     * @return client subnet in the prefix notation, null if none is sent
+     */
+    public @Nullable String getSubnetKey() {
+        return subnetKey;
+    }
+
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    /**
+     * @param value - address or prefix like 203.0.113.0/24
+     * @throws DNSParseException if the value is malformed
+     */
+    public static ClientSubnetOption parseSubnet(String value) {
+        final int slash = value.indexOf('/');
+        final InetAddress address = parseAddress(slash == -1 ? value : value.substring(0, slash));
+        if (address == null) throw new DNSParseException("Invalid client subnet: " + value);
+        final int maxPrefix = address instanceof Inet4Address ? 32 : 128;
+        int prefix = address instanceof Inet4Address ? IPV4_PREFIX : IPV6_PREFIX;
+        if (slash != -1) {
+            try {
+                prefix = Integer.parseInt(value.substring(slash + 1));
+            } catch (NumberFormatException ex) {
+                throw new DNSParseException("Invalid client subnet prefix: " + value);
+            }
+            if (prefix < 0 || prefix > maxPrefix) throw new DNSParseException("Invalid client subnet prefix: " + value);
+        }
+        return new ClientSubnetOption(prefix, Address.truncate(address, prefix));
+    }
+
+    private static InetAddress parseAddress(String value) {
+        final int family = value.indexOf(':') != -1 ? Address.IPv6 : Address.IPv4;
+        final byte[] bytes = Address.toByteArray(value, family);
+        if (bytes == null) return null;
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches a set of files and notifies the listener
+ * on a background thread when any of them changes
+ */
+public class FileWatcher implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileWatcher.class);
+
+    // Editors tend to write a file in several steps
+    private static final long DEBOUNCE = 500;
+
+    private final WatchService service;
+    private final Map<WatchKey, Set<Path>> watched = new HashMap<>();
+    private final Runnable listener;
+    private final Thread thread;
+
+    public FileWatcher(Collection<Path> files, Runnable listener, String name) throws IOException {
+        this.listener = listener;
+        this.service = FileSystems.getDefault().newWatchService();
+
+        final Map<Path, Set<Path>> directories = new HashMap<>();
+        for (Path file : files) {
+            file = file.toAbsolutePath().normalize();
+            if (file.getParent() == null) continue;
+            directories.computeIfAbsent(file.getParent(), k -> new HashSet<>()).add(file.getFileName());
+        }
+        try {
+            for (Map.Entry<Path, Set<Path>> directory : directories.entrySet()) {
+                final WatchKey key = directory.getKey().register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                watched.put(key, directory.getValue());
+            }
+        } catch (IOException ex) {
+            service.close();
+            throw ex;
+        }
+
+        this.thread = new DaemonThreadFactory(name).newThread(this::run);
+        this.thread.start();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                boolean changed = poll(service.take());
+                if (!changed) continue;
+                // Wait for the file to be written completely, then drop the remaining events
+                Thread.sleep(DEBOUNCE);
+                WatchKey key;
+                while ((key = service.poll()) != null) poll(key);
+                try {
+                    listener.run();
+                } catch (RuntimeException ex) {
+                    LOGGER.warn("Failed to handle a file change: {}", ex.getMessage(), ex);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignore) {}
+    }
+
+    private boolean poll(WatchKey key) {
+        final Set<Path> names = watched.get(key);
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || (names != null && names.contains((Path) event.context()))) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        service.close();
+    }
+}
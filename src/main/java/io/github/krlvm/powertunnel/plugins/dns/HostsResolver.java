@@ -0,0 +1,170 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns;
+
+import io.github.krlvm.powertunnel.plugins.dns.cache.DNSCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Address;
+import org.xbill.DNS.Type;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Answers hostnames listed in the hosts file
+ *
+ * The file is parsed once into an immutable map and
+ * parsed again in the background when it changes
+ */
+public class HostsResolver implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HostsResolver.class);
+
+    private final Path file;
+    private volatile Hosts hosts = new Hosts(Collections.emptyMap(), Collections.emptyMap());
+    private FileWatcher watcher;
+
+    public HostsResolver(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return addresses ordered according to the address family preference,
+     * or null if the hostname is not listed
+     */
+    public InetAddress[] lookup(String host, IPPreference preference) {
+        final Hosts hosts = this.hosts;
+        if (hosts.ipv4.isEmpty() && hosts.ipv6.isEmpty()) return null;
+        final String key = DNSCache.key(host);
+
+        final InetAddress[] preferred = hosts.get(key, preference.getPreferredType() == Type.A);
+        if (!preference.isDualStack()) return preferred;
+        final InetAddress[] fallback = hosts.get(key, preference.getFallbackType() == Type.A);
+        if (preferred == null) return fallback;
+        if (fallback == null) return preferred;
+
+        final InetAddress[] addresses = Arrays.copyOf(preferred, preferred.length + fallback.length);
+        System.arraycopy(fallback, 0, addresses, preferred.length, fallback.length);
+        return addresses;
+    }
+
+    public void load() {
+        final Map<String, List<InetAddress>> ipv4 = new HashMap<>();
+        final Map<String, List<InetAddress>> ipv6 = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                parse(line, ipv4, ipv6);
+            }
+        } catch (NoSuchFileException ex) {
+            LOGGER.debug("Hosts file '{}' does not exist", file);
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to read hosts file '{}': {}", file, ex.getMessage(), ex);
+            return;
+        }
+        hosts = new Hosts(freeze(ipv4), freeze(ipv6));
+        LOGGER.debug("Loaded {} hostnames from hosts file '{}'", ipv4.size() + ipv6.size(), file);
+    }
+
+    /**
+     * Parses the hosts file again when it is modified
+     */
+    public void watch() {
+        try {
+            watcher = new FileWatcher(Collections.singletonList(file), this::load, "dns-hosts-watcher");
+        } catch (IOException | UnsupportedOperationException ex) {
+            LOGGER.warn("Hosts file will not be reloaded on change: {}", ex.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+    private static void parse(String line, Map<String, List<InetAddress>> ipv4, Map<String, List<InetAddress>> ipv6) {
+        final int comment = line.indexOf('#');
+        if (comment != -1) line = line.substring(0, comment);
+        final StringTokenizer tokenizer = new StringTokenizer(line);
+        if (tokenizer.countTokens() < 2) return;
+
+        final String token = tokenizer.nextToken();
+        byte[] bytes = Address.toByteArray(token, Address.IPv4);
+        if (bytes == null) bytes = Address.toByteArray(token, Address.IPv6);
+        if (bytes == null) return;
+        final InetAddress address;
+        try {
+            address = InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException ex) {
+            return;
+        }
+
+        final Map<String, List<InetAddress>> target = address instanceof Inet4Address ? ipv4 : ipv6;
+        while (tokenizer.hasMoreTokens()) {
+            final List<InetAddress> addresses = target.computeIfAbsent(DNSCache.key(tokenizer.nextToken()), k -> new ArrayList<>(1));
+            if (!addresses.contains(address)) addresses.add(address);
+        }
+    }
+
+    private static Map<String, InetAddress[]> freeze(Map<String, List<InetAddress>> map) {
+        final Map<String, InetAddress[]> frozen = new HashMap<>(map.size() * 4 / 3 + 1);
+        for (Map.Entry<String, List<InetAddress>> entry : map.entrySet()) {
+            frozen.put(entry.getKey(), entry.getValue().toArray(new InetAddress[0]));
+        }
+        return Collections.unmodifiableMap(frozen);
+    }
+
+    /**
+     * @return path of the operating system hosts file
+     */
+    public static Path getSystemHostsFile() {
+        if (System.getProperty("os.name", "").startsWith("Windows")) {
+            return Paths.get(System.getenv().getOrDefault("SystemRoot", "C:\\Windows"), "System32", "drivers", "etc", "hosts");
+        }
+        return Paths.get("/etc/hosts");
+    }
+
+    private static class Hosts {
+
+        private final Map<String, InetAddress[]> ipv4;
+        private final Map<String, InetAddress[]> ipv6;
+
+        private Hosts(Map<String, InetAddress[]> ipv4, Map<String, InetAddress[]> ipv6) {
+            this.ipv4 = ipv4;
+            this.ipv6 = ipv6;
+        }
+
+        private InetAddress[] get(String host, boolean v4) {
+            return (v4 ? ipv4 : ipv6).get(host);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns;
+
+import org.xbill.DNS.Type;
+
+public enum IPPreference {
+
+    IPV4(Type.A, Type.AAAA),
+    IPV6(Type.AAAA, Type.A),
+
+    IPV4_ONLY(Type.A, -1),
+    IPV6_ONLY(Type.AAAA, -1);
+
+    private final int preferredType;
+    private final int fallbackType;
+
+    IPPreference(int preferredType, int fallbackType) {
+        this.preferredType = preferredType;
+        this.fallbackType = fallbackType;
+    }
+
+    public int getPreferredType() {
+        return preferredType;
+    }
+
+    public int getFallbackType() {
+        return fallbackType;
+    }
+
+    public boolean isDualStack() {
+        return fallbackType != -1;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns;
+
+import java.net.UnknownHostException;
+
+/**
+ * Upstream authoritatively answered that the hostname
+ * does not exist (NXDOMAIN) or has no addresses (NODATA)
+ */
+public class NegativeAnswerException extends UnknownHostException {
+
+    private final boolean nxDomain;
+    private final long ttl;
+
+    /**
+     * @param ttl - negative caching TTL in seconds (RFC 2308), -1 if the response has no SOA record
+     */
+    public NegativeAnswerException(String message, boolean nxDomain, long ttl) {
+        super(message);
+        this.nxDomain = nxDomain;
+        this.ttl = ttl;
+    }
+
+    public boolean isNXDomain() {
+        return nxDomain;
+    }
+
+    public long getTTL() {
+        return ttl;
+    }
+}
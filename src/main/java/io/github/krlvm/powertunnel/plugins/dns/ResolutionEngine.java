@@ -0,0 +1,503 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns;
+
+import io.github.krlvm.powertunnel.plugins.dns.cache.CacheEntry;
+import io.github.krlvm.powertunnel.plugins.dns.cache.DNSCache;
+import io.github.krlvm.powertunnel.plugins.dns.cache.NegativeCache;
+import io.github.krlvm.powertunnel.plugins.dns.metrics.DNSMetrics;
+import io.github.krlvm.powertunnel.sdk.proxy.DNSResolver;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves hostnames through {@link Resolver#sendAsync(Message, Executor)}
+ *
+ * Upstream I/O never happens on the calling thread: queries are dispatched
+ * to the engine's own executor, at most maxConcurrency of them are in flight
+ * at once, the rest wait in a queue, and every query is bounded by the timeout.
+ */
+public class ResolutionEngine implements DNSResolver, Closeable {
+
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(
+            1, new DaemonThreadFactory("dns-timeout")
+    );
+
+    static {
+        // Timers of answered queries are cancelled, they must not pile up until they expire
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    // How long the other address family is waited for once the preferred one has answered
+    private static final long RESOLUTION_DELAY = 50;
+
+    private final Resolver resolver;
+    private final DNSCache cache;
+    private final NegativeCache negativeCache;
+    private final HostsResolver hosts;
+    private final IPPreference preference;
+    private final AddressSelector selector;
+    private final DNSMetrics metrics;
+    private final EDNSConfiguration edns;
+
+    private final ExecutorService executor;
+    private final long timeout;
+    private final int maxConcurrency;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Queue<Query> pending = new ConcurrentLinkedQueue<>();
+
+    // Single-flight: concurrent requests for the same hostname share one upstream query
+    private final ConcurrentMap<String, CompletableFuture<DNSAnswer>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * @param resolver - upstream resolver
+     * @param cache - resolution cache, null to disable caching
+     * @param negativeCache - cache of non-existent hostnames, null to disable negative caching
+     * @param hosts - hosts file resolver, null to ignore hosts file
+     * @param preference - address families to query and their order
+     * @param selector - picks an address out of the answer set
+     * @param metrics - metrics registry
+     * @param threads - number of engine executor threads
+     * @param timeout - query timeout in milliseconds
+     * @param maxConcurrency - maximum number of queries in flight
+     */
+    public ResolutionEngine(@NotNull Resolver resolver, @Nullable DNSCache cache,
+                            @Nullable NegativeCache negativeCache, @Nullable HostsResolver hosts,
+                            @NotNull IPPreference preference, @NotNull AddressSelector selector,
+                            @NotNull DNSMetrics metrics,
+                            int threads, long timeout, int maxConcurrency) {
+        this(
+                resolver, cache, negativeCache, hosts, preference, selector, metrics,
+                null, createThreadPool(threads), timeout, maxConcurrency
+        );
+    }
+
+    /**
+     * @param edns - EDNS options of the upstream resolver, answers scoped
+     *               to the client subnet are cached separately,
+     *               null if the client subnet is not sent
+     * @param executor - executor upstream queries are dispatched to,
+     *                   it is shut down when the engine is closed
+     */
+    public ResolutionEngine(@NotNull Resolver resolver, @Nullable DNSCache cache,
+                            @Nullable NegativeCache negativeCache, @Nullable HostsResolver hosts,
+                            @NotNull IPPreference preference, @NotNull AddressSelector selector,
+                            @NotNull DNSMetrics metrics, @Nullable EDNSConfiguration edns,
+                            @NotNull ExecutorService executor, long timeout, int maxConcurrency) {
+        if (timeout <= 0 || maxConcurrency <= 0) {
+            throw new IllegalArgumentException("Resolver timeout and concurrency must be positive");
+        }
+
+        this.resolver = resolver;
+        this.cache = cache;
+        this.negativeCache = negativeCache;
+        this.hosts = hosts;
+        this.preference = preference;
+        this.selector = selector;
+        this.metrics = metrics;
+        this.edns = edns;
+        this.timeout = timeout;
+        this.maxConcurrency = maxConcurrency;
+        this.executor = executor;
+
+        this.resolver.setTimeout(Duration.ofMillis(timeout));
+    }
+
+    /**
+     * @param threads - number of pool threads
+     * @return default engine executor
+     */
+    public static ExecutorService createThreadPool(int threads) {
+        if (threads <= 0) throw new IllegalArgumentException("Resolver threads must be positive");
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads,
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new DaemonThreadFactory("dns-resolver")
+        );
+        // Idle threads die, so an engine left behind by a proxy restart does not leak them
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Resolves a hostname, the calling thread only waits
+     * for the result and does not perform network I/O
+     */
+    @Override
+    public InetSocketAddress resolve(String host, int port) throws UnknownHostException {
+        try {
+            return resolveAsync(host, port).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw unknownHost(host, ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof UnknownHostException) {
+                throw (UnknownHostException) ex.getCause();
+            }
+            throw unknownHost(host, ex.getCause());
+        }
+    }
+
+    public CompletableFuture<InetSocketAddress> resolveAsync(String host, int port) {
+        metrics.recordQuery();
+        final InetAddress[] local = lookupHosts(host);
+        if (local != null) {
+            return CompletableFuture.completedFuture(selector.select(local, port));
+        }
+        final InetAddress[] cached = lookupCache(host);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(selector.select(cached, port));
+        }
+        final UnknownHostException negative = lookupNegativeCache(host);
+        if (negative != null) {
+            return failed(negative);
+        }
+        return flight(host, true).thenApply(answer -> selector.select(answer.getAddresses(), port));
+    }
+
+    /**
+     * Resolves all addresses of a hostname ordered
+     * according to the address family preference
+     */
+    public CompletableFuture<InetAddress[]> resolveAllAsync(String host) {
+        metrics.recordQuery();
+        final InetAddress[] local = lookupHosts(host);
+        if (local != null) {
+            return CompletableFuture.completedFuture(local);
+        }
+        final InetAddress[] cached = lookupCache(host);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        final UnknownHostException negative = lookupNegativeCache(host);
+        if (negative != null) {
+            return failed(negative);
+        }
+        return flight(host, true).thenApply(DNSAnswer::getAddresses);
+    }
+
+    private InetAddress[] lookupHosts(String host) {
+        if (hosts == null) return null;
+        final InetAddress[] addresses = hosts.lookup(host, preference);
+        if (addresses != null) metrics.recordHostsAnswer();
+        return addresses;
+    }
+
+    private InetAddress[] lookupCache(String host) {
+        if (cache == null) return null;
+        final CacheEntry entry = cache.get(host, getSubnet());
+        if (entry == null) {
+            metrics.recordCacheMiss();
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        metrics.recordCacheHit(entry.isExpired(now));
+        if (cache.needsRefresh(entry, now)) {
+            // Stale or popular expiring entry is served right away and refreshed in the background,
+            // if the refresh fails, the entry keeps being served until the stale window ends
+            flight(host, false).whenComplete((answer, ex) -> {
+                if (ex != null) cache.onRefreshFailed(entry);
+            });
+        }
+        return entry.getAddresses();
+    }
+
+    private NegativeAnswerException lookupNegativeCache(String host) {
+        if (negativeCache == null) return null;
+        final Boolean nxDomain = negativeCache.get(host);
+        if (nxDomain == null) return null;
+        metrics.recordNegativeCacheHit();
+        return new NegativeAnswerException(host + ": " + (nxDomain ? "NXDOMAIN" : "no address records") + " (cached)", nxDomain, -1);
+    }
+
+    /**
+     * Joins the upstream query for the hostname or starts a new one
+     *
+     * @param count - whether joining a running query counts as a coalesced request
+     */
+    private CompletableFuture<DNSAnswer> flight(String host, boolean count) {
+        final String key = DNSCache.key(host);
+        CompletableFuture<DNSAnswer> flight = flights.get(key);
+        if (flight == null) {
+            final CompletableFuture<DNSAnswer> created = new CompletableFuture<>();
+            flight = flights.putIfAbsent(key, created);
+            if (flight == null) {
+                startFlight(host, key, created);
+                return created;
+            }
+        }
+        if (count) metrics.recordCoalesced();
+        return flight;
+    }
+
+    private void startFlight(String host, String key, CompletableFuture<DNSAnswer> flight) {
+        final Name name;
+        try {
+            name = Name.fromString(host, Name.root);
+        } catch (TextParseException ex) {
+            flights.remove(key, flight);
+            flight.completeExceptionally(unknownHost(host, ex));
+            return;
+        }
+
+        // Subnet the query is sent with, it may change while the query is in flight
+        final String subnet = getSubnet();
+        queryAddresses(name).whenComplete((answer, ex) -> {
+            if (answer != null && cache != null) {
+                cache.put(key, answer.getScope() > 0 ? subnet : null, answer.getAddresses(), answer.getTTL());
+            }
+            if (ex != null) metrics.recordFailure();
+            final Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+            if (cause instanceof NegativeAnswerException && negativeCache != null) {
+                final NegativeAnswerException negative = (NegativeAnswerException) cause;
+                // Responses without SOA record must not be cached (RFC 2308, Section 5)
+                if (negative.getTTL() >= 0) {
+                    negativeCache.put(key, negative.isNXDomain(), negative.getTTL());
+                }
+            }
+            // Followers arriving from now on are served by the cache
+            flights.remove(key, flight);
+            if (ex != null) {
+                flight.completeExceptionally(ex);
+            } else {
+                flight.complete(answer);
+            }
+        });
+    }
+
+    /**
+     * Queries both address families in parallel, a failure
+     * of one of them is tolerated if the other one succeeds
+     *
+     * Once the preferred family answers, the other one gets only
+     * the resolution delay (RFC 8305, Section 3) to arrive,
+     * so a slow upstream for one family doesn't hold every lookup
+     *
+     * The hostname gets a negative answer only if both families got one,
+     * NODATA is per type (RFC 2308) and the other family may have failed transiently
+     */
+    private CompletableFuture<DNSAnswer> queryAddresses(Name name) {
+        final CompletableFuture<DNSAnswer> preferred = lookup(name, preference.getPreferredType());
+        if (!preference.isDualStack()) return preferred;
+        final CompletableFuture<DNSAnswer> fallback = lookup(name, preference.getFallbackType());
+
+        final CompletableFuture<DNSAnswer> result = new CompletableFuture<>();
+        preferred.whenComplete((primary, primaryEx) -> {
+            if (primary == null) {
+                fallback.whenComplete((secondary, secondaryEx) -> {
+                    if (secondary != null) {
+                        result.complete(secondary);
+                    } else {
+                        result.completeExceptionally(combineFailures(name, unwrap(primaryEx), unwrap(secondaryEx)));
+                    }
+                });
+                return;
+            }
+            final ScheduledFuture<?> delay = TIMER.schedule(
+                    () -> result.complete(primary), RESOLUTION_DELAY, TimeUnit.MILLISECONDS
+            );
+            fallback.whenComplete((secondary, secondaryEx) -> {
+                delay.cancel(false);
+                result.complete(secondary != null ? DNSAnswer.interleave(primary, secondary) : primary);
+            });
+        });
+        return result;
+    }
+
+    private static Throwable combineFailures(Name name, Throwable primary, Throwable secondary) {
+        if (!(primary instanceof NegativeAnswerException)) return primary;
+        if (!(secondary instanceof NegativeAnswerException)) return secondary;
+        final NegativeAnswerException primaryNegative = (NegativeAnswerException) primary;
+        final NegativeAnswerException secondaryNegative = (NegativeAnswerException) secondary;
+        final boolean nxDomain = primaryNegative.isNXDomain() || secondaryNegative.isNXDomain();
+        return new NegativeAnswerException(
+                name + ": " + (nxDomain ? "NXDOMAIN" : "no address records"), nxDomain,
+                // Any of them is -1 if it can't be cached
+                Math.min(primaryNegative.getTTL(), secondaryNegative.getTTL())
+        );
+    }
+
+    private static Throwable unwrap(Throwable ex) {
+        return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+    }
+
+    private CompletableFuture<DNSAnswer> lookup(Name name, int type) {
+        return queryAsync(Message.newQuery(Record.newRecord(name, type, DClass.IN))).thenApply(response -> {
+            try {
+                return DNSAnswer.parse(response, name, type);
+            } catch (UnknownHostException ex) {
+                throw new CompletionException(ex);
+            }
+        });
+    }
+
+    /**
+     * Sends a query upstream as is, bypassing the caches,
+     * it shares the concurrency limit and timeout with hostname lookups
+     */
+    public CompletableFuture<Message> queryAsync(Message query) {
+        final Record question = query.getQuestion();
+        final CompletableFuture<Message> result = new CompletableFuture<>();
+        final ScheduledFuture<?> timer = TIMER.schedule(() -> {
+            if (result.completeExceptionally(new UnknownHostException(
+                    (question != null ? question.getName() : "query") + ": query timed out"))) {
+                metrics.recordTimeout();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        result.whenComplete((response, ex) -> timer.cancel(false));
+
+        pending.add(new Query(query, result));
+        dispatch();
+        return result;
+    }
+
+    private void dispatch() {
+        while (!pending.isEmpty()) {
+            final int current = inFlight.get();
+            if (current >= maxConcurrency) return;
+            if (!inFlight.compareAndSet(current, current + 1)) continue;
+
+            final Query task = pending.poll();
+            if (task == null) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException ex) {
+                // Engine is closed, the query fails instead of the caller
+                inFlight.decrementAndGet();
+                task.reject(ex);
+            }
+        }
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        dispatch();
+    }
+
+    private String getSubnet() {
+        return edns != null ? edns.getSubnetKey() : null;
+    }
+
+    /**
+     * @return remaining lifetime of the cached answer in seconds, -1 if it is not cached
+     */
+    public long getCachedTTL(String host) {
+        return cache != null ? cache.getTTL(host, getSubnet()) : -1;
+    }
+
+    public @NotNull IPPreference getPreference() {
+        return preference;
+    }
+
+    public @Nullable DNSCache getCache() {
+        return cache;
+    }
+
+    public @Nullable NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Shuts down the executor and the address prober,
+     * queries still in flight fail
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        selector.close();
+    }
+
+    /**
+     * Query waiting for a free concurrency slot
+     */
+    private class Query implements Runnable {
+
+        private final Message query;
+        private final CompletableFuture<Message> result;
+
+        private Query(Message query, CompletableFuture<Message> result) {
+            this.query = query;
+            this.result = result;
+        }
+
+        @Override
+        public void run() {
+            if (result.isDone()) {
+                release();
+                return;
+            }
+            final CompletionStage<Message> stage;
+            try {
+                stage = resolver.sendAsync(query, executor);
+            } catch (RuntimeException ex) {
+                release();
+                result.completeExceptionally(ex);
+                return;
+            }
+            stage.whenComplete((response, ex) -> {
+                release();
+                if (ex != null) {
+                    result.completeExceptionally(ex);
+                    return;
+                }
+                metrics.recordResponse(response.getRcode());
+                result.complete(response);
+            });
+        }
+
+        private void reject(RejectedExecutionException cause) {
+            final Record question = query.getQuestion();
+            final UnknownHostException ex = new UnknownHostException(
+                    (question != null ? question.getName() : "query") + ": resolver is closed");
+            ex.initCause(cause);
+            result.completeExceptionally(ex);
+        }
+    }
+
+    private static UnknownHostException unknownHost(String host, Throwable cause) {
+        final UnknownHostException ex = new UnknownHostException(host + ": " + cause.getMessage());
+        ex.initCause(cause);
+        return ex;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable ex) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(ex);
+        return future;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns;
+
+import io.github.krlvm.powertunnel.plugins.dns.filter.Blocklist;
+import io.github.krlvm.powertunnel.plugins.dns.resolver.DNSSECResolver;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything built out of the plugin configuration to answer
+ * resolution requests, replaced as a whole when the configuration changes
+ */
+public class ResolverPipeline implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResolverPipeline.class);
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("dns-pipeline-close")
+    );
+    // Time queries in flight are given to complete when the pipeline is closed
+    private static final long CLOSE_DELAY = 30_000;
+
+    private final ResolutionEngine engine;
+    private final DNSSECResolver validator;
+    private final Blocklist blocklist;
+    private final HostsResolver hosts;
+    private final List<Closeable> resources;
+
+    private final String signature;
+    private final String cacheSignature;
+
+    /**
+     * @param resources - upstream resolvers and other resources closed with the pipeline
+     * @param signature - configuration values the pipeline is built from
+     * @param cacheSignature - configuration values the caches are built from
+     */
+    public ResolverPipeline(@NotNull ResolutionEngine engine, @Nullable DNSSECResolver validator,
+                            @Nullable Blocklist blocklist, @Nullable HostsResolver hosts,
+                            @NotNull List<? extends Closeable> resources, @NotNull String signature, @NotNull String cacheSignature) {
+        this.engine = engine;
+        this.validator = validator;
+        this.blocklist = blocklist;
+        this.hosts = hosts;
+        this.resources = new ArrayList<>(resources);
+        this.signature = signature;
+        this.cacheSignature = cacheSignature;
+    }
+
+    public @NotNull ResolutionEngine getEngine() {
+        return engine;
+    }
+
+    public @Nullable DNSSECResolver getValidator() {
+        return validator;
+    }
+
+    public @Nullable Blocklist getBlocklist() {
+        return blocklist;
+    }
+
+    public @NotNull String getSignature() {
+        return signature;
+    }
+
+    public @NotNull String getCacheSignature() {
+        return cacheSignature;
+    }
+
+    /**
+     * Stops watching files, the engine, the validator and the upstream
+     * resolvers are closed once queries in flight had time to complete
+     */
+    @Override
+    public void close() {
+        try {
+            if (blocklist != null) blocklist.close();
+            if (hosts != null) hosts.close();
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to stop watching files: {}", ex.getMessage(), ex);
+        }
+        TIMER.schedule(() -> {
+            engine.close();
+            if (validator != null) validator.close();
+            for (Closeable resource : resources) {
+                try {
+                    resource.close();
+                } catch (IOException ex) {
+                    LOGGER.debug("Failed to close '{}': {}", resource, ex.getMessage());
+                }
+            }
+        }, CLOSE_DELAY, TimeUnit.MILLISECONDS);
+    }
+}
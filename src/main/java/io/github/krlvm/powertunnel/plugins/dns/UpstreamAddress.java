@@ -0,0 +1,244 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns;
+
+import org.xbill.DNS.Address;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+
+/**
+ * Parsed upstream DNS server address
+ *
+ * Supported forms:
+ * <pre>
+ * 1.1.1.1            1.1.1.1:53
+ * 2606:4700::1111    [2606:4700::1111]:53
+ * udp://1.1.1.1      tcp://1.1.1.1:53
+ * tls://1.1.1.1      tls://dns.google:853
+ * https://cloudflare-dns.com/dns-query
+ * </pre>
+ */
+public final class UpstreamAddress {
+
+    public enum Scheme {
+        UDP(53), TCP(53), TLS(853), HTTPS(443), HTTP(80);
+
+        private final int defaultPort;
+
+        Scheme(int defaultPort) {
+            this.defaultPort = defaultPort;
+        }
+
+        public int getDefaultPort() {
+            return defaultPort;
+        }
+    }
+
+    public enum Family { IPV4, IPV6, HOSTNAME }
+
+    private final Scheme scheme;
+    private final String host;
+    private final int port;
+    private final Family family;
+    private final String url;
+
+    private UpstreamAddress(Scheme scheme, String host, int port, Family family, String url) {
+        this.scheme = scheme;
+        this.host = host;
+        this.port = port;
+        this.family = family;
+        this.url = url;
+    }
+
+    /**
+     * @throws DNSParseException if the address is malformed
+     */
+    public static UpstreamAddress parse(String address) {
+        final int length = address.length();
+        Scheme scheme = Scheme.UDP;
+        int start = 0;
+        final int separator = address.indexOf("://");
+        if (separator != -1) {
+            scheme = parseScheme(address, separator);
+            start = separator + 3;
+        }
+
+        // Authority ends where the DoH path starts
+        int end = length;
+        final boolean web = scheme == Scheme.HTTPS || scheme == Scheme.HTTP;
+        for (int i = start; i < length; i++) {
+            final char c = address.charAt(i);
+            if (c == '/' || c == '?' || c == '#') {
+                if (!web) throw invalid(address);
+                end = i;
+                break;
+            }
+        }
+        if (start == end) throw invalid(address);
+
+        final String host;
+        int port = -1;
+        if (address.charAt(start) == '[') {
+            final int bracket = address.indexOf(']', start);
+            if (bracket == -1 || bracket > end) throw invalid(address);
+            host = address.substring(start + 1, bracket);
+            if (bracket + 1 < end) {
+                if (address.charAt(bracket + 1) != ':') throw invalid(address);
+                port = parsePort(address, bracket + 2, end);
+            }
+        } else {
+            int colons = 0, lastColon = -1;
+            for (int i = start; i < end; i++) {
+                if (address.charAt(i) == ':') {
+                    colons++;
+                    lastColon = i;
+                }
+            }
+            if (colons == 1) {
+                host = address.substring(start, lastColon);
+                port = parsePort(address, lastColon + 1, end);
+            } else {
+                // Bare IPv6 addresses can not have a port
+                host = address.substring(start, end);
+            }
+        }
+
+        final Family family = parseFamily(host);
+        if (family == null || (address.charAt(start) == '[' && family != Family.IPV6)) throw invalid(address);
+        return new UpstreamAddress(
+                scheme, host,
+                port == -1 ? scheme.getDefaultPort() : port,
+                family,
+                web ? address : null
+        );
+    }
+
+    private static Scheme parseScheme(String address, int separator) {
+        final String scheme = address.substring(0, separator).toLowerCase(Locale.ROOT);
+        switch (scheme) {
+            case "udp": return Scheme.UDP;
+            case "tcp": return Scheme.TCP;
+            case "tls": return Scheme.TLS;
+            case "https": return Scheme.HTTPS;
+            case "http": return Scheme.HTTP;
+            default: throw new DNSParseException("Unsupported DNS protocol: " + scheme);
+        }
+    }
+
+    private static int parsePort(String address, int start, int end) {
+        if (start == end || end - start > 5) throw invalid(address);
+        int port = 0;
+        for (int i = start; i < end; i++) {
+            final char c = address.charAt(i);
+            if (c < '0' || c > '9') throw invalid(address);
+            port = port * 10 + (c - '0');
+        }
+        if (port == 0 || port > 65535) throw invalid(address);
+        return port;
+    }
+
+    private static Family parseFamily(String host) {
+        if (host.isEmpty()) return null;
+        if (host.indexOf(':') != -1) {
+            return Address.toByteArray(host, Address.IPv6) != null ? Family.IPV6 : null;
+        }
+        boolean numeric = true;
+        for (int i = 0; i < host.length(); i++) {
+            final char c = host.charAt(i);
+            if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '-' || c == '_') {
+                numeric = false;
+            } else if ((c < '0' || c > '9') && c != '.') {
+                return null;
+            }
+        }
+        if (!numeric) return Family.HOSTNAME;
+        return Address.toByteArray(host, Address.IPv4) != null ? Family.IPV4 : null;
+    }
+
+    private static DNSParseException invalid(String address) {
+        return new DNSParseException("Invalid DNS address: " + address);
+    }
+
+    public Scheme getScheme() {
+        return scheme;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Family getFamily() {
+        return family;
+    }
+
+    /**
+     * @return DNS-over-HTTPS endpoint URL, null for other protocols
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    public boolean isIPAddress() {
+        return family != Family.HOSTNAME;
+    }
+
+    /**
+     * @return server socket address, hostnames are left unresolved
+     */
+    public InetSocketAddress toSocketAddress() {
+        if (!isIPAddress()) return InetSocketAddress.createUnresolved(host, port);
+        try {
+            // Literal address, no lookup is made
+            final InetAddress address = Address.getByAddress(host, family == Family.IPV4 ? Address.IPv4 : Address.IPv6);
+            return new InetSocketAddress(address, port);
+        } catch (UnknownHostException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof UpstreamAddress)) return false;
+        final UpstreamAddress that = (UpstreamAddress) o;
+        return port == that.port && scheme == that.scheme && host.equals(that.host)
+                && (url == null ? that.url == null : url.equals(that.url));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = scheme.hashCode();
+        result = 31 * result + host.hashCode();
+        result = 31 * result + port;
+        return 31 * result + (url != null ? url.hashCode() : 0);
+    }
+
+    @Override
+    public String toString() {
+        if (url != null) return url;
+        return scheme.name().toLowerCase(Locale.ROOT) + "://"
+                + (family == Family.IPV6 ? "[" + host + "]" : host) + ":" + port;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.cache;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CacheEntry {
+
+    private final InetAddress[] addresses;
+    private final long createdAt;
+    private final long expiresAt;
+
+    private final AtomicInteger hits = new AtomicInteger();
+    // A failed refresh is not retried before this time
+    private volatile long refreshHeldUntil;
+
+    public CacheEntry(InetAddress[] addresses, long createdAt, long expiresAt) {
+        this.addresses = addresses;
+        this.createdAt = createdAt;
+        this.expiresAt = expiresAt;
+    }
+
+    public InetAddress[] getAddresses() {
+        return addresses;
+    }
+
+    public InetAddress getAddress() {
+        return addresses[0];
+    }
+
+    /**
+     * @return expiration time in milliseconds since the epoch
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+
+    /**
+     * @return true if less than the given share of the entry lifetime is left
+     */
+    public boolean isExpiring(long now, double share) {
+        return expiresAt - now <= (expiresAt - createdAt) * share;
+    }
+
+    long getRefreshHeldUntil() {
+        return refreshHeldUntil;
+    }
+
+    void holdRefresh(long until) {
+        this.refreshHeldUntil = until;
+    }
+
+    int hit() {
+        return hits.incrementAndGet();
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+}
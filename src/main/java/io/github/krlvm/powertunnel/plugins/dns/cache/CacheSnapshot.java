@@ -0,0 +1,189 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.cache;
+
+import io.github.krlvm.powertunnel.plugins.dns.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists the resolution cache to disk, so that
+ * the proxy does not start with a cold cache
+ *
+ * File format (big-endian):
+ *   int    magic
+ *   int    format version
+ *   int    number of entries
+ *   entries:
+ *     short  hostname length, hostname (UTF-8)
+ *     long   expiration time in milliseconds since the epoch
+ *     byte   number of addresses
+ *     addresses:
+ *       byte   address length (4 or 16), address
+ */
+public class CacheSnapshot {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheSnapshot.class);
+
+    private static final int MAGIC = 0x50544443; // PTDC
+    public static final int FORMAT_VERSION = 1;
+
+    private static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
+
+    private final Path file;
+    private final DNSCache cache;
+
+    private final Thread shutdownHook = new Thread(this::save, "dns-cache-snapshot-shutdown");
+    private ScheduledExecutorService scheduler;
+
+    public CacheSnapshot(Path file, DNSCache cache) {
+        this.file = file;
+        this.cache = cache;
+    }
+
+    /**
+     * Restores the snapshot into the cache,
+     * skipping entries that can not be served anymore
+     *
+     * @return number of restored entries
+     */
+    public int load() {
+        if (!Files.isRegularFile(file)) return 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer buffer;
+            if (WINDOWS) {
+                // Windows does not let a mapped file be replaced until the mapping is garbage collected
+                buffer = ByteBuffer.allocate((int) channel.size());
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) == -1) break;
+                }
+                buffer.flip();
+            } else {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (buffer.getInt() != MAGIC) {
+                LOGGER.warn("DNS cache snapshot '{}' is corrupted, ignoring it", file);
+                return 0;
+            }
+            final int version = buffer.getInt();
+            if (version != FORMAT_VERSION) {
+                LOGGER.info("DNS cache snapshot '{}' has unsupported format version {}, ignoring it", file, version);
+                return 0;
+            }
+
+            final long now = System.currentTimeMillis();
+            int restored = 0;
+            final int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                final byte[] host = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(host);
+                final long expiresAt = buffer.getLong();
+                final InetAddress[] addresses = new InetAddress[buffer.get() & 0xFF];
+                for (int j = 0; j < addresses.length; j++) {
+                    final byte[] address = new byte[buffer.get() & 0xFF];
+                    buffer.get(address);
+                    addresses[j] = InetAddress.getByAddress(address);
+                }
+                if (addresses.length == 0) continue;
+                // Expired entries are restored too if they still can be served stale
+                if (cache.restore(new String(host, StandardCharsets.UTF_8), new CacheEntry(addresses, now, expiresAt))) {
+                    restored++;
+                }
+            }
+            return restored;
+        } catch (IOException | BufferUnderflowException ex) {
+            LOGGER.warn("Failed to load DNS cache snapshot '{}': {}", file, ex.getMessage(), ex);
+            return 0;
+        }
+    }
+
+    public synchronized void save() {
+        final Map<String, CacheEntry> entries = cache.snapshot();
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, CacheEntry> entry : entries.entrySet()) {
+                    final byte[] host = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    final InetAddress[] addresses = entry.getValue().getAddresses();
+                    final int count = Math.min(addresses.length, 255);
+                    out.writeShort(host.length);
+                    out.write(host);
+                    out.writeLong(entry.getValue().getExpiresAt());
+                    out.writeByte(count);
+                    for (int i = 0; i < count; i++) {
+                        final byte[] address = addresses[i].getAddress();
+                        out.writeByte(address.length);
+                        out.write(address);
+                    }
+                }
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to save DNS cache snapshot '{}': {}", file, ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Starts saving the snapshot periodically and on JVM shutdown
+     *
+     * @param interval - interval between saves in seconds
+     */
+    public synchronized void start(long interval) {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("dns-cache-snapshot"));
+        scheduler.scheduleWithFixedDelay(this::save, interval, interval, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Stops periodic saving and saves the snapshot for the last time
+     */
+    public synchronized void stop() {
+        if (scheduler == null) return;
+        scheduler.shutdownNow();
+        scheduler = null;
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ignore) {
+            // JVM is shutting down
+        }
+        save();
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.cache;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded hostname to addresses cache
+ *
+ * Entries live for the upstream TTL clamped to
+ * [minTtl; maxTtl], when the cache is full
+ * the least recently used entry is evicted
+ *
+ * Expired entries are kept for staleWindow more seconds
+ * and can be served while being refreshed (RFC 8767),
+ * a failed refresh is retried no sooner than in 30 seconds,
+ * entries hit at least prefetchHits times are refreshed
+ * shortly before they expire
+ */
+public class DNSCache {
+
+    private final int maxSize;
+    private final long minTtl;
+    private final long maxTtl;
+    private final long staleWindow;
+    private final int prefetchHits;
+
+    private final Map<String, CacheEntry> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    // Entry is prefetched when less than this share of its lifetime is left
+    private static final double PREFETCH_SHARE = 0.1;
+    // Failure recheck timer (RFC 8767, Section 4)
+    private static final long REFRESH_RETRY_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * @param maxSize - maximum number of cached hostnames
+     * @param minTtl - minimum entry lifetime in seconds
+     * @param maxTtl - maximum entry lifetime in seconds
+     * @param staleWindow - time in seconds an expired entry can be served for, 0 to disable
+     * @param prefetchHits - hits needed to prefetch an entry, 0 to disable
+     */
+    public DNSCache(int maxSize, long minTtl, long maxTtl, long staleWindow, int prefetchHits) {
+        if (maxSize <= 0) throw new IllegalArgumentException("Cache size must be positive");
+        if (minTtl < 0 || maxTtl < minTtl) throw new IllegalArgumentException("Invalid cache TTL bounds");
+        if (staleWindow < 0 || prefetchHits < 0) throw new IllegalArgumentException("Invalid stale window or prefetch threshold");
+
+        this.maxSize = maxSize;
+        this.minTtl = minTtl;
+        this.maxTtl = maxTtl;
+        this.staleWindow = staleWindow * 1000;
+        this.prefetchHits = prefetchHits;
+
+        this.entries = new LinkedHashMap<String, CacheEntry>(Math.min(maxSize, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > DNSCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return cached entry, it may be expired if serving stale entries is enabled
+     */
+    public CacheEntry get(String host) {
+        return get(host, null);
+    }
+
+    /**
+     * Looks up the answer scoped to the client subnet first,
+     * then the answer valid for any subnet
+     *
+     * @param subnet - client subnet sent upstream, null if none is sent
+     * @return cached entry, it may be expired if serving stale entries is enabled
+     */
+    public CacheEntry get(String host, String subnet) {
+        final String key = key(host);
+        final long now = System.currentTimeMillis();
+        CacheEntry entry;
+        synchronized (entries) {
+            entry = subnet != null ? find(scopedKey(key, subnet), now) : null;
+            if (entry == null) {
+                entry = find(key, now);
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        (entry.isExpired(now) ? staleHits : hits).increment();
+        entry.hit();
+        return entry;
+    }
+
+    /**
+     * Looks up the remaining lifetime of an entry,
+     * it is not counted as a cache hit
+     *
+     * @param subnet - client subnet sent upstream, null if none is sent
+     * @return remaining lifetime in seconds, 0 if the entry is stale, -1 if there is no entry
+     */
+    public long getTTL(String host, String subnet) {
+        final String key = key(host);
+        CacheEntry entry;
+        synchronized (entries) {
+            entry = subnet != null ? entries.get(scopedKey(key, subnet)) : null;
+            if (entry == null) {
+                entry = entries.get(key);
+            }
+        }
+        if (entry == null) return -1;
+        return Math.max(0, (entry.getExpiresAt() - System.currentTimeMillis()) / 1000);
+    }
+
+    /**
+     * @return true if the entry is stale or it is popular and about to expire,
+     *         false for a while after a refresh failed
+     */
+    public boolean needsRefresh(CacheEntry entry, long now) {
+        if (now < entry.getRefreshHeldUntil()) return false;
+        if (entry.isExpired(now)) return true;
+        return prefetchHits > 0 && entry.getHits() >= prefetchHits && entry.isExpiring(now, PREFETCH_SHARE);
+    }
+
+    /**
+     * Holds off refreshing the entry after the upstream failed to refresh it
+     */
+    public void onRefreshFailed(CacheEntry entry) {
+        entry.holdRefresh(System.currentTimeMillis() + REFRESH_RETRY_DELAY);
+    }
+
+    private CacheEntry find(String key, long now) {
+        final CacheEntry entry = entries.get(key);
+        if (entry != null && isEvictable(entry, now)) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private boolean isEvictable(CacheEntry entry, long now) {
+        return now >= entry.getExpiresAt() + staleWindow;
+    }
+
+    /**
+     * @param host - hostname
+     * @param addresses - resolved addresses, must not be empty
+     * @param ttl - upstream TTL in seconds
+     */
+    public CacheEntry put(String host, InetAddress[] addresses, long ttl) {
+        return put(host, null, addresses, ttl);
+    }
+
+    /**
+     * @param subnet - client subnet the answer is scoped to, null if it is valid for any subnet
+     */
+    public CacheEntry put(String host, String subnet, InetAddress[] addresses, long ttl) {
+        final long lifetime = Math.max(minTtl, Math.min(maxTtl, ttl));
+        final long now = System.currentTimeMillis();
+        final CacheEntry entry = new CacheEntry(addresses, now, now + lifetime * 1000);
+        if (lifetime == 0) return entry;
+        synchronized (entries) {
+            entries.put(subnet != null ? scopedKey(key(host), subnet) : key(host), entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Puts an already built entry, used to restore a cache snapshot
+     *
+     * @return false if the entry is too old to be served
+     */
+    public boolean restore(String host, CacheEntry entry) {
+        if (isEvictable(entry, System.currentTimeMillis())) return false;
+        synchronized (entries) {
+            entries.put(key(host), entry);
+        }
+        return true;
+    }
+
+    /**
+     * @return copy of the cache contents, least recently used first
+     */
+    public Map<String, CacheEntry> snapshot() {
+        synchronized (entries) {
+            return new LinkedHashMap<>(entries);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    // Hostnames never contain '#'
+    private static String scopedKey(String key, String subnet) {
+        return key + '#' + subnet;
+    }
+
+    public static String key(String host) {
+        String key = host.toLowerCase(Locale.ROOT);
+        if (key.endsWith(".")) {
+            key = key.substring(0, key.length() - 1);
+        }
+        return key;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of hostnames that do not exist
+ * or have no addresses (RFC 2308)
+ *
+ * It is kept apart from {@link DNSCache}, so that a flood
+ * of non-existent names can not evict useful entries
+ */
+public class NegativeCache {
+
+    private final int maxSize;
+    private final long maxTtl;
+
+    private final Map<String, NegativeEntry> entries;
+
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * @param maxSize - maximum number of cached hostnames
+     * @param maxTtl - maximum entry lifetime in seconds
+     */
+    public NegativeCache(int maxSize, long maxTtl) {
+        if (maxSize <= 0) throw new IllegalArgumentException("Negative cache size must be positive");
+        if (maxTtl < 0) throw new IllegalArgumentException("Invalid negative cache TTL");
+
+        this.maxSize = maxSize;
+        this.maxTtl = maxTtl;
+
+        this.entries = new LinkedHashMap<String, NegativeEntry>(Math.min(maxSize, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, NegativeEntry> eldest) {
+                return size() > NegativeCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return null if the hostname is not cached, otherwise whether it does not exist (NXDOMAIN)
+     * or just has no addresses (NODATA)
+     */
+    public Boolean get(String host) {
+        final String key = DNSCache.key(host);
+        final NegativeEntry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry == null) return null;
+            if (System.currentTimeMillis() >= entry.expiresAt) {
+                entries.remove(key);
+                return null;
+            }
+        }
+        hits.increment();
+        return entry.nxDomain;
+    }
+
+    /**
+     * @param ttl - TTL derived from the SOA record in seconds
+     */
+    public void put(String host, boolean nxDomain, long ttl) {
+        final long lifetime = Math.min(ttl, maxTtl);
+        if (lifetime <= 0) return;
+        synchronized (entries) {
+            entries.put(DNSCache.key(host), new NegativeEntry(nxDomain, System.currentTimeMillis() + lifetime * 1000));
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    private static class NegativeEntry {
+        private final boolean nxDomain;
+        private final long expiresAt;
+
+        private NegativeEntry(boolean nxDomain, long expiresAt) {
+            this.nxDomain = nxDomain;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
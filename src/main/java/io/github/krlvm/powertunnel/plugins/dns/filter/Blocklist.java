@@ -0,0 +1,262 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.filter;
+
+import io.github.krlvm.powertunnel.plugins.dns.FileWatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Address;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Answers listed hostnames locally, without querying the upstream
+ *
+ * Supported list formats, one entry per line:
+ * <ul>
+ *     <li>hosts file: {@code 0.0.0.0 example.com} blocks the hostname,
+ *     any other address overrides it</li>
+ *     <li>domain list: {@code example.com} blocks the domain and its subdomains,
+ *     {@code *.example.com} blocks only the subdomains</li>
+ *     <li>adblock-style: {@code ||example.com^} blocks the domain and its subdomains</li>
+ * </ul>
+ *
+ * Lists are reloaded in the background when the files change,
+ * lookups use the previous lists until the new ones are loaded
+ */
+public class Blocklist implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Blocklist.class);
+
+    private static final InetAddress[] NXDOMAIN = new InetAddress[0];
+    private static final Set<String> LOCAL_NAMES = new HashSet<>(Arrays.asList(
+            "localhost", "localhost.localdomain", "local", "broadcasthost",
+            "ip6-localhost", "ip6-loopback", "0.0.0.0"
+    ));
+
+    public enum Mode {
+        /** Blocked hostnames resolve to 0.0.0.0 on the local DNS server, proxied connections to them fail */
+        NULL,
+        /** Blocked hostnames do not exist */
+        NXDOMAIN
+    }
+
+    private final List<Path> files;
+    private final InetAddress[] blocked;
+
+    private volatile Index index = new Index();
+    private FileWatcher watcher;
+
+    public Blocklist(List<Path> files, Mode mode) {
+        this.files = files;
+        try {
+            this.blocked = mode == Mode.NULL ? new InetAddress[] { InetAddress.getByAddress(new byte[4]) } : NXDOMAIN;
+        } catch (UnknownHostException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * @return local answer, empty if the hostname does not exist, or null if it is not listed
+     */
+    public InetAddress[] lookup(String host) {
+        final Index index = this.index;
+        if (!index.overrides.isEmpty()) {
+            final InetAddress[] addresses = index.override(host);
+            if (addresses != null) return addresses;
+        }
+        return index.blocked.matches(host) ? blocked : null;
+    }
+
+    /**
+     * Loads the lists, keeps the current ones if reading fails
+     */
+    public void load() {
+        final long start = System.currentTimeMillis();
+        final Index index = new Index();
+        for (Path file : files) {
+            try {
+                index.read(file);
+            } catch (NoSuchFileException ex) {
+                LOGGER.warn("Blocklist '{}' does not exist", file);
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to read blocklist '{}': {}", file, ex.getMessage(), ex);
+                return;
+            }
+        }
+        index.blocked.trim();
+        this.index = index;
+        LOGGER.info("Loaded {} blocked and {} overridden hostnames in {} ms",
+                index.blocked.size(), index.overrides.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Reloads the lists when the files are modified
+     */
+    public void watch() {
+        try {
+            watcher = new FileWatcher(files, this::load, "dns-blocklist-watcher");
+        } catch (IOException | UnsupportedOperationException ex) {
+            LOGGER.warn("Blocklists will not be reloaded on change: {}", ex.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+    private static class Index {
+
+        private final DomainSet blocked = new DomainSet();
+        // Keys are hostnames, or parent domains starting with a dot for wildcard overrides
+        private final Map<String, InetAddress[]> overrides = new HashMap<>();
+
+        private InetAddress[] override(String host) {
+            String key = host.toLowerCase(Locale.ROOT);
+            if (key.endsWith(".")) key = key.substring(0, key.length() - 1);
+            final InetAddress[] addresses = overrides.get(key);
+            if (addresses != null) return addresses;
+            for (int i = key.indexOf('.'); i != -1; i = key.indexOf('.', i + 1)) {
+                final InetAddress[] parent = overrides.get(key.substring(i));
+                if (parent != null) return parent;
+            }
+            return null;
+        }
+
+        private void read(Path file) throws IOException {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    parse(line);
+                }
+            }
+        }
+
+        private void parse(String line) {
+            int end = line.indexOf('#');
+            if (end == -1) end = line.length();
+            int i = skipSpaces(line, 0, end);
+            if (i == end) return;
+            final char first = line.charAt(i);
+            // Adblock comments, headers and exception rules
+            if (first == '!' || first == '[' || first == '@') return;
+
+            int tokenEnd = skipToken(line, i, end);
+            final String token = line.substring(i, tokenEnd);
+            final InetAddress address = parseAddress(token);
+            if (address == null) {
+                addDomain(token);
+                return;
+            }
+
+            final boolean block = address.isAnyLocalAddress() || address.isLoopbackAddress();
+            for (i = skipSpaces(line, tokenEnd, end); i < end; i = skipSpaces(line, tokenEnd, end)) {
+                tokenEnd = skipToken(line, i, end);
+                final String host = normalize(line.substring(i, tokenEnd));
+                if (host == null || LOCAL_NAMES.contains(host)) continue;
+                if (block && host.startsWith("*.")) {
+                    blocked.add(host.substring(2), DomainSet.SUBDOMAINS);
+                } else if (block) {
+                    blocked.add(host, DomainSet.EXACT);
+                } else {
+                    addOverride(host, address);
+                }
+            }
+        }
+
+        private void addDomain(String token) {
+            int flags = DomainSet.EXACT | DomainSet.SUBDOMAINS;
+            if (token.startsWith("||")) {
+                final int caret = token.indexOf('^');
+                token = token.substring(2, caret == -1 ? token.length() : caret);
+            } else if (token.startsWith("*.")) {
+                token = token.substring(2);
+                flags = DomainSet.SUBDOMAINS;
+            } else if (token.startsWith(".")) {
+                token = token.substring(1);
+            }
+            final String host = normalize(token);
+            if (host != null) blocked.add(host, flags);
+        }
+
+        private void addOverride(String host, InetAddress address) {
+            if (host.startsWith("*.")) host = host.substring(1);
+            final InetAddress[] current = overrides.get(host);
+            if (current == null) {
+                overrides.put(host, new InetAddress[] { address });
+            } else {
+                final InetAddress[] addresses = Arrays.copyOf(current, current.length + 1);
+                addresses[current.length] = address;
+                overrides.put(host, addresses);
+            }
+        }
+
+        private static InetAddress parseAddress(String token) {
+            final int family;
+            if (token.indexOf(':') != -1) {
+                family = Address.IPv6;
+            } else if (!token.isEmpty() && Character.isDigit(token.charAt(0))) {
+                family = Address.IPv4;
+            } else {
+                return null;
+            }
+            final byte[] address = Address.toByteArray(token, family);
+            if (address == null) return null;
+            try {
+                return InetAddress.getByAddress(address);
+            } catch (UnknownHostException ex) {
+                return null;
+            }
+        }
+
+        private static String normalize(String host) {
+            if (host.endsWith(".")) host = host.substring(0, host.length() - 1);
+            if (host.isEmpty()) return null;
+            for (int i = 0; i < host.length(); i++) {
+                final char c = host.charAt(i);
+                if (!(c >= 'a' && c <= 'z') && !(c >= '0' && c <= '9') && c != '-' && c != '.' && c != '_'
+                        && !(c == '*' && i == 0) && !(c >= 'A' && c <= 'Z')) {
+                    return null;
+                }
+            }
+            return host.toLowerCase(Locale.ROOT);
+        }
+
+        private static int skipSpaces(String line, int i, int end) {
+            while (i < end && Character.isWhitespace(line.charAt(i))) i++;
+            return i;
+        }
+
+        private static int skipToken(String line, int i, int end) {
+            while (i < end && !Character.isWhitespace(line.charAt(i))) i++;
+            return i;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.filter;
+
+/**
+ * Compact set of hostnames stored as 64-bit hashes
+ * in an open addressing table of 8-byte slots, the table
+ * is a power of two kept 3/8 to 3/4 full after trimming,
+ * so an entry takes about 11 to 21 bytes, 16 on average
+ *
+ * Hostnames are hashed from the last character to the first,
+ * so the hash of every parent domain is an intermediate value
+ * and a hostname is matched against all of its parents
+ * in a single pass, O(label count) table lookups
+ */
+class DomainSet {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /** Hostname itself matches */
+    static final int EXACT = 1;
+    /** Subdomains of the hostname match */
+    static final int SUBDOMAINS = 2;
+
+    private long[] table = new long[16];
+    private int size;
+
+    /**
+     * @param host - lowercase hostname without the trailing dot
+     * @param flags - {@link #EXACT}, {@link #SUBDOMAINS} or both
+     */
+    void add(String host, int flags) {
+        final long hash = hash(host);
+        // Low bits of the hash are taken by the flags
+        final long value = (hash & ~3L) | flags;
+        if ((size + 1) * 4L > table.length * 3L) {
+            grow();
+        }
+        final int mask = table.length - 1;
+        int index = (int) (hash >>> 32) & mask;
+        while (table[index] != 0) {
+            if ((table[index] & ~3L) == (hash & ~3L)) {
+                table[index] |= flags;
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+        table[index] = value;
+        size++;
+    }
+
+    /**
+     * @param host - hostname, case-insensitive, may end with a dot
+     */
+    boolean matches(String host) {
+        if (size == 0) return false;
+        int end = host.length();
+        if (end > 0 && host.charAt(end - 1) == '.') end--;
+        if (end == 0) return false;
+
+        long hash = FNV_OFFSET;
+        for (int i = end - 1; i >= 0; i--) {
+            final char c = host.charAt(i);
+            if (c == '.' && (lookup(mix(hash)) & SUBDOMAINS) != 0) {
+                // Suffix after the dot is a listed parent domain
+                return true;
+            }
+            hash = (hash ^ lower(c)) * FNV_PRIME;
+        }
+        return (lookup(mix(hash)) & EXACT) != 0;
+    }
+
+    private int lookup(long hash) {
+        final int mask = table.length - 1;
+        int index = (int) (hash >>> 32) & mask;
+        long value;
+        while ((value = table[index]) != 0) {
+            if ((value & ~3L) == (hash & ~3L)) return (int) (value & 3L);
+            index = (index + 1) & mask;
+        }
+        return 0;
+    }
+
+    private void grow() {
+        final long[] old = table;
+        table = new long[old.length * 2];
+        final int mask = table.length - 1;
+        for (long value : old) {
+            if (value == 0) continue;
+            int index = (int) (value >>> 32) & mask;
+            while (table[index] != 0) index = (index + 1) & mask;
+            table[index] = value;
+        }
+    }
+
+    /**
+     * Shrinks the table after loading, keeping it at most 3/4 full
+     */
+    void trim() {
+        int capacity = 16;
+        while (size * 4L > capacity * 3L) capacity <<= 1;
+        if (capacity >= table.length) return;
+        final long[] old = table;
+        table = new long[capacity];
+        final int mask = capacity - 1;
+        for (long value : old) {
+            if (value == 0) continue;
+            int index = (int) (value >>> 32) & mask;
+            while (table[index] != 0) index = (index + 1) & mask;
+            table[index] = value;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static long hash(String host) {
+        long hash = FNV_OFFSET;
+        for (int i = host.length() - 1; i >= 0; i--) {
+            hash = (hash ^ lower(host.charAt(i))) * FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    private static char lower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+    }
+
+    // MurmurHash3 finalizer, FNV alone spreads low bits poorly
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        // Zero marks an empty slot
+        return (hash & ~3L) == 0 ? 4 : hash;
+    }
+}
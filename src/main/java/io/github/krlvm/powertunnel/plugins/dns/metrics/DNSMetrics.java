@@ -0,0 +1,325 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.metrics;
+
+import io.github.krlvm.powertunnel.plugins.dns.ResolutionEngine;
+import io.github.krlvm.powertunnel.plugins.dns.cache.DNSCache;
+import org.xbill.DNS.Rcode;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics registry, counters are recorded without locking
+ * and outlive the resolution engines they are recorded by,
+ * gauges are read from the current engine on demand
+ */
+public class DNSMetrics implements DNSMetricsMBean {
+
+    private static final String OBJECT_NAME = "io.github.krlvm.powertunnel.plugins.dns:type=DNSMetrics";
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder hostsAnswers = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder servfail = new LongAdder();
+    private final LongAdder nxdomain = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheStaleHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder negativeCacheHits = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder dnssecValidations = new LongAdder();
+    private final LongAdder dnssecSecure = new LongAdder();
+    private final LongAdder dnssecBogus = new LongAdder();
+    private final LongAdder dnssecTime = new LongAdder();
+
+    private final ConcurrentMap<String, UpstreamMetrics> upstreams = new ConcurrentHashMap<>();
+
+    private volatile ResolutionEngine engine;
+
+    /**
+     * Sets the source of the cache size and in-flight metrics
+     */
+    public void bind(ResolutionEngine engine) {
+        this.engine = engine;
+    }
+
+    public void recordQuery() {
+        queries.increment();
+    }
+
+    public void recordCacheHit(boolean stale) {
+        (stale ? cacheStaleHits : cacheHits).increment();
+    }
+
+    public void recordCacheMiss() {
+        cacheMisses.increment();
+    }
+
+    public void recordNegativeCacheHit() {
+        negativeCacheHits.increment();
+    }
+
+    public void recordCoalesced() {
+        coalesced.increment();
+    }
+
+    public void recordHostsAnswer() {
+        hostsAnswers.increment();
+    }
+
+    public void recordBlocked() {
+        blocked.increment();
+    }
+
+    public void recordFailure() {
+        failures.increment();
+    }
+
+    public void recordTimeout() {
+        timeouts.increment();
+    }
+
+    /**
+     * @param nanos - time the validated query took
+     */
+    public void recordValidation(long nanos) {
+        dnssecValidations.increment();
+        dnssecTime.add(nanos);
+    }
+
+    public void recordSecure() {
+        dnssecSecure.increment();
+    }
+
+    public void recordBogus() {
+        dnssecBogus.increment();
+    }
+
+    public void recordResponse(int rcode) {
+        if (rcode == Rcode.SERVFAIL) {
+            servfail.increment();
+        } else if (rcode == Rcode.NXDOMAIN) {
+            nxdomain.increment();
+        }
+    }
+
+    public UpstreamMetrics upstream(String name) {
+        final UpstreamMetrics metrics = upstreams.get(name);
+        return metrics != null ? metrics : upstreams.computeIfAbsent(name, k -> new UpstreamMetrics());
+    }
+
+    /**
+     * Drops the metrics of upstreams that are no longer used
+     *
+     * @param names - upstreams of the current pipeline
+     */
+    public void retainUpstreams(Collection<String> names) {
+        upstreams.keySet().retainAll(names);
+    }
+
+    Map<String, UpstreamMetrics> getUpstreamMetrics() {
+        return upstreams;
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server, replacing
+     * the ones registered by the previous proxy run
+     *
+     * @return false if JMX is not available
+     */
+    public boolean registerMBean() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(this, name);
+            return true;
+        } catch (JMException | LinkageError ex) {
+            // There is no JMX on Android
+            return false;
+        }
+    }
+
+    @Override
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheStaleHits() {
+        return cacheStaleHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public int getCacheSize() {
+        final DNSCache cache = getCache();
+        return cache != null ? cache.size() : 0;
+    }
+
+    @Override
+    public long getNegativeCacheHits() {
+        return negativeCacheHits.sum();
+    }
+
+    @Override
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    @Override
+    public int getInFlight() {
+        final ResolutionEngine engine = this.engine;
+        return engine != null ? engine.getInFlight() : 0;
+    }
+
+    @Override
+    public long getHostsAnswers() {
+        return hostsAnswers.sum();
+    }
+
+    @Override
+    public long getBlocked() {
+        return blocked.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getServfail() {
+        return servfail.sum();
+    }
+
+    @Override
+    public long getNxdomain() {
+        return nxdomain.sum();
+    }
+
+    @Override
+    public long getDnssecValidations() {
+        return dnssecValidations.sum();
+    }
+
+    @Override
+    public double getDnssecAverageTime() {
+        final long validations = dnssecValidations.sum();
+        return validations == 0 ? 0 : dnssecTime.sum() / 1e6 / validations;
+    }
+
+    long getDnssecSecure() {
+        return dnssecSecure.sum();
+    }
+
+    long getDnssecBogus() {
+        return dnssecBogus.sum();
+    }
+
+    /**
+     * @return total time of validated queries, in nanoseconds
+     */
+    long getDnssecTime() {
+        return dnssecTime.sum();
+    }
+
+    @Override
+    public String[] getUpstreams() {
+        final List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, UpstreamMetrics> entry : upstreams.entrySet()) {
+            final UpstreamMetrics metrics = entry.getValue();
+            final Histogram rtt = metrics.getRtt();
+            lines.add(entry.getKey()
+                    + ": queries=" + rtt.getCount()
+                    + ", p50" + formatQuantile(rtt.getQuantile(0.5))
+                    + ", p99" + formatQuantile(rtt.getQuantile(0.99))
+                    + ", timeouts=" + metrics.getTimeouts()
+                    + ", errors=" + metrics.getErrors());
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    private static String formatQuantile(long bound) {
+        if (bound == -1) return "=n/a";
+        if (bound == Long.MAX_VALUE) return ">" + Histogram.BOUNDS[Histogram.BOUNDS.length - 1] + "ms";
+        return "<=" + bound + "ms";
+    }
+
+    private DNSCache getCache() {
+        final ResolutionEngine engine = this.engine;
+        return engine != null ? engine.getCache() : null;
+    }
+
+    public static class UpstreamMetrics {
+
+        private final Histogram rtt = new Histogram();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        public void recordResponse(long nanos) {
+            rtt.record(nanos);
+        }
+
+        public void recordTimeout() {
+            timeouts.increment();
+        }
+
+        public void recordError() {
+            errors.increment();
+        }
+
+        public Histogram getRtt() {
+            return rtt;
+        }
+
+        public long getTimeouts() {
+            return timeouts.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+    }
+}
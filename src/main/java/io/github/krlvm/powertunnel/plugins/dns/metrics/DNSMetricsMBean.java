@@ -0,0 +1,61 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.metrics;
+
+/**
+ * Plugin metrics exposed through JMX
+ */
+public interface DNSMetricsMBean {
+
+    long getQueries();
+
+    long getCacheHits();
+
+    long getCacheStaleHits();
+
+    long getCacheMisses();
+
+    int getCacheSize();
+
+    long getNegativeCacheHits();
+
+    long getCoalesced();
+
+    int getInFlight();
+
+    long getHostsAnswers();
+
+    long getBlocked();
+
+    long getFailures();
+
+    long getTimeouts();
+
+    long getServfail();
+
+    long getNxdomain();
+
+    long getDnssecValidations();
+
+    double getDnssecAverageTime();
+
+    /**
+     * @return one line per upstream server with its latency percentiles
+     */
+    String[] getUpstreams();
+}
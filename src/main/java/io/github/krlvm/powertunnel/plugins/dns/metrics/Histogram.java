@@ -0,0 +1,91 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with fixed exponential buckets
+ */
+public class Histogram {
+
+    /** Bucket upper bounds in milliseconds */
+    static final long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000 };
+
+    // The last bucket counts values above the largest bound
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < BOUNDS.length && millis >= BOUNDS[bucket]) bucket++;
+        buckets[bucket].increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * @return number of values in each bucket and all the previous ones
+     */
+    public long[] getCumulativeCounts() {
+        final long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) count += bucket.sum();
+        return count;
+    }
+
+    /**
+     * @return sum of the recorded values in nanoseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @param quantile - value between 0 and 1
+     * @return upper bound of the bucket the quantile falls into in milliseconds,
+     * Long.MAX_VALUE if it is above the largest bound, -1 if nothing is recorded
+     */
+    public long getQuantile(double quantile) {
+        final long[] counts = getCumulativeCounts();
+        final long total = counts[counts.length - 1];
+        if (total == 0) return -1;
+        final long rank = (long) Math.ceil(quantile * total);
+        for (int i = 0; i < BOUNDS.length; i++) {
+            if (counts[i] >= rank) return BOUNDS[i];
+        }
+        // +Inf bucket
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.metrics;
+
+import io.github.krlvm.powertunnel.plugins.dns.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Serves metrics in the Prometheus text format on the loopback interface
+ */
+public class MetricsServer implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsServer.class);
+
+    private static final int READ_TIMEOUT = 2000;
+
+    private final DNSMetrics metrics;
+    private final ServerSocket socket;
+
+    public MetricsServer(DNSMetrics metrics, int port) throws IOException {
+        this.metrics = metrics;
+        this.socket = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        new DaemonThreadFactory("dns-metrics").newThread(this::run).start();
+    }
+
+    private void run() {
+        while (!socket.isClosed()) {
+            try (Socket client = socket.accept()) {
+                client.setSoTimeout(READ_TIMEOUT);
+                handle(client);
+            } catch (IOException ex) {
+                if (!socket.isClosed()) LOGGER.debug("Failed to serve metrics: {}", ex.getMessage());
+            }
+        }
+    }
+
+    private void handle(Socket client) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+        final String request = reader.readLine();
+        if (request == null) return;
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            // Headers are not needed
+        }
+
+        final String[] parts = request.split(" ");
+        final boolean found = parts.length >= 2 && (parts[1].equals("/metrics") || parts[1].equals("/"));
+        final byte[] body = (found ? format(metrics) : "Not Found\n").getBytes(StandardCharsets.UTF_8);
+
+        final OutputStream out = client.getOutputStream();
+        out.write(((found ? "HTTP/1.1 200 OK" : "HTTP/1.1 404 Not Found") + "\r\n"
+                + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    static String format(DNSMetrics metrics) {
+        final StringBuilder builder = new StringBuilder(4096);
+        counter(builder, "dns_queries_total", "Resolution requests", metrics.getQueries());
+        counter(builder, "dns_cache_hits_total", "Requests answered from the cache", metrics.getCacheHits());
+        counter(builder, "dns_cache_stale_hits_total", "Requests answered with expired cache entries", metrics.getCacheStaleHits());
+        counter(builder, "dns_cache_misses_total", "Requests not found in the cache", metrics.getCacheMisses());
+        gauge(builder, "dns_cache_entries", "Cached hostnames", metrics.getCacheSize());
+        counter(builder, "dns_negative_cache_hits_total", "Requests answered from the negative cache", metrics.getNegativeCacheHits());
+        counter(builder, "dns_coalesced_total", "Requests that joined a running upstream query", metrics.getCoalesced());
+        gauge(builder, "dns_in_flight", "Upstream queries in flight", metrics.getInFlight());
+        counter(builder, "dns_hosts_answers_total", "Requests answered from the hosts file", metrics.getHostsAnswers());
+        counter(builder, "dns_blocked_total", "Requests answered from the blocklists", metrics.getBlocked());
+        counter(builder, "dns_failures_total", "Requests that failed to resolve", metrics.getFailures());
+        counter(builder, "dns_timeouts_total", "Queries that timed out", metrics.getTimeouts());
+
+        builder.append("# HELP dns_responses_total Upstream responses by error code\n");
+        builder.append("# TYPE dns_responses_total counter\n");
+        builder.append("dns_responses_total{rcode=\"SERVFAIL\"} ").append(metrics.getServfail()).append('\n');
+        builder.append("dns_responses_total{rcode=\"NXDOMAIN\"} ").append(metrics.getNxdomain()).append('\n');
+
+        final Map<String, DNSMetrics.UpstreamMetrics> upstreams = metrics.getUpstreamMetrics();
+        builder.append("# HELP dns_upstream_rtt_seconds Upstream response time\n");
+        builder.append("# TYPE dns_upstream_rtt_seconds histogram\n");
+        for (Map.Entry<String, DNSMetrics.UpstreamMetrics> entry : upstreams.entrySet()) {
+            final String label = "upstream=\"" + escape(entry.getKey()) + "\"";
+            final Histogram rtt = entry.getValue().getRtt();
+            final long[] counts = rtt.getCumulativeCounts();
+            for (int i = 0; i < Histogram.BOUNDS.length; i++) {
+                builder.append("dns_upstream_rtt_seconds_bucket{").append(label)
+                        .append(",le=\"").append(Histogram.BOUNDS[i] / 1000.0).append("\"} ").append(counts[i]).append('\n');
+            }
+            builder.append("dns_upstream_rtt_seconds_bucket{").append(label).append(",le=\"+Inf\"} ")
+                    .append(counts[counts.length - 1]).append('\n');
+            builder.append("dns_upstream_rtt_seconds_sum{").append(label).append("} ").append(rtt.getSum() / 1e9).append('\n');
+            builder.append("dns_upstream_rtt_seconds_count{").append(label).append("} ").append(counts[counts.length - 1]).append('\n');
+        }
+        builder.append("# HELP dns_upstream_timeouts_total Upstream queries that timed out\n");
+        builder.append("# TYPE dns_upstream_timeouts_total counter\n");
+        for (Map.Entry<String, DNSMetrics.UpstreamMetrics> entry : upstreams.entrySet()) {
+            builder.append("dns_upstream_timeouts_total{upstream=\"").append(escape(entry.getKey())).append("\"} ")
+                    .append(entry.getValue().getTimeouts()).append('\n');
+        }
+        builder.append("# HELP dns_upstream_errors_total Upstream queries that failed\n");
+        builder.append("# TYPE dns_upstream_errors_total counter\n");
+        for (Map.Entry<String, DNSMetrics.UpstreamMetrics> entry : upstreams.entrySet()) {
+            builder.append("dns_upstream_errors_total{upstream=\"").append(escape(entry.getKey())).append("\"} ")
+                    .append(entry.getValue().getErrors()).append('\n');
+        }
+
+        counter(builder, "dnssec_secure_total", "Responses validated as secure", metrics.getDnssecSecure());
+        counter(builder, "dnssec_bogus_total", "Responses that failed validation", metrics.getDnssecBogus());
+        builder.append("# HELP dnssec_validation_seconds Time spent on validated queries\n");
+        builder.append("# TYPE dnssec_validation_seconds summary\n");
+        builder.append("dnssec_validation_seconds_sum ").append(metrics.getDnssecTime() / 1e9).append('\n');
+        builder.append("dnssec_validation_seconds_count ").append(metrics.getDnssecValidations()).append('\n');
+        return builder.toString();
+    }
+
+    private static void counter(StringBuilder builder, String name, String help, long value) {
+        metric(builder, name, help, "counter", value);
+    }
+
+    private static void gauge(StringBuilder builder, String name, String help, long value) {
+        metric(builder, name, help, "gauge", value);
+    }
+
+    private static void metric(StringBuilder builder, String name, String help, String type, long value) {
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        builder.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.resolver;
+
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Resolver;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends queries to the currently fastest healthy upstream
+ *
+ * Every upstream keeps an exponentially weighted moving average
+ * of its round trip time and error rate, a small share of queries
+ * goes to a random upstream to keep the measurements fresh.
+ * An upstream that fails several times in a row is taken out
+ * of rotation for an exponentially growing backoff period.
+ * A failed query is retried on the next best upstream,
+ * the query timeout is split evenly between the attempts.
+ */
+public class AdaptiveResolver extends MultiResolver {
+
+    private static final double ALPHA = 0.3;
+    private static final double PROBE_RATIO = 0.05;
+    // Penalty added to the RTT of an upstream that fails every query
+    private static final double ERROR_PENALTY = 1000;
+
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long MIN_BACKOFF = TimeUnit.SECONDS.toNanos(5);
+    private static final long MAX_BACKOFF = TimeUnit.MINUTES.toNanos(2);
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final List<Upstream> upstreams = new ArrayList<>();
+    private final int attempts;
+
+    public AdaptiveResolver(List<Resolver> resolvers) {
+        super(resolvers);
+        for (Resolver resolver : this.resolvers) {
+            upstreams.add(new Upstream(resolver));
+        }
+        this.attempts = Math.min(MAX_ATTEMPTS, upstreams.size());
+    }
+
+    @Override
+    public void setTimeout(Duration timeout) {
+        super.setTimeout(timeout);
+        // With the whole timeout the first attempt would use it up
+        // and the query would never be retried on the next upstream
+        final Duration attemptTimeout = timeout.dividedBy(attempts);
+        for (Resolver resolver : resolvers) resolver.setTimeout(attemptTimeout);
+    }
+
+    @Override
+    public CompletionStage<Message> sendAsync(Message query, Executor executor) {
+        final CompletableFuture<Message> result = new CompletableFuture<>();
+        send(query, executor, order(), 0, null, result);
+        return result;
+    }
+
+    private void send(Message query, Executor executor, List<Upstream> order, int index,
+                      Message unusable, CompletableFuture<Message> result) {
+        if (index >= attempts) {
+            if (unusable != null) {
+                result.complete(unusable);
+            } else {
+                result.completeExceptionally(new IOException("All upstream resolvers failed"));
+            }
+            return;
+        }
+
+        final Upstream upstream = order.get(index);
+        final long start = System.nanoTime();
+        final CompletionStage<Message> stage;
+        try {
+            stage = upstream.resolver.sendAsync(query.clone(), executor);
+        } catch (RuntimeException ex) {
+            upstream.onFailure();
+            send(query, executor, order, index + 1, unusable, result);
+            return;
+        }
+        stage.whenComplete((response, ex) -> {
+            if (response != null && isUsable(response)) {
+                upstream.onSuccess(System.nanoTime() - start);
+                result.complete(response);
+                return;
+            }
+            upstream.onFailure();
+            send(query, executor, order, index + 1, response != null ? response : unusable, result);
+        });
+    }
+
+    /**
+     * @return upstreams to try, best first
+     */
+    private List<Upstream> order() {
+        final long now = System.nanoTime();
+        final List<Upstream> available = new ArrayList<>(upstreams.size());
+        final List<Upstream> broken = new ArrayList<>();
+        for (Upstream upstream : upstreams) {
+            (upstream.isAvailable(now) ? available : broken).add(upstream);
+        }
+        available.sort(Comparator.comparingDouble(Upstream::score));
+
+        if (available.size() > 1 && ThreadLocalRandom.current().nextDouble() < PROBE_RATIO) {
+            final int probe = 1 + ThreadLocalRandom.current().nextInt(available.size() - 1);
+            available.add(0, available.remove(probe));
+        }
+        // Upstreams in backoff are the last resort
+        broken.sort(Comparator.comparingLong(upstream -> upstream.openUntil));
+        available.addAll(broken);
+        return available;
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveResolver " + upstreams;
+    }
+
+    private static class Upstream {
+
+        private final Resolver resolver;
+
+        private double rtt = 0;
+        private double errorRate = 0;
+
+        private int failures = 0;
+        private long backoff = 0;
+        private volatile boolean open = false;
+        private volatile long openUntil;
+
+        private Upstream(Resolver resolver) {
+            this.resolver = resolver;
+        }
+
+        synchronized double score() {
+            return rtt + errorRate * ERROR_PENALTY;
+        }
+
+        boolean isAvailable(long now) {
+            return !open || now - openUntil >= 0;
+        }
+
+        synchronized void onSuccess(long elapsed) {
+            final double millis = elapsed / 1_000_000.0;
+            rtt = rtt == 0 ? millis : ALPHA * millis + (1 - ALPHA) * rtt;
+            errorRate = (1 - ALPHA) * errorRate;
+            failures = 0;
+            backoff = 0;
+            open = false;
+        }
+
+        synchronized void onFailure() {
+            errorRate = ALPHA + (1 - ALPHA) * errorRate;
+            if (++failures >= FAILURE_THRESHOLD) {
+                backoff = backoff == 0 ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+                openUntil = System.nanoTime() + backoff;
+                open = true;
+                // After the backoff a single failure is enough to open the circuit again
+                failures = FAILURE_THRESHOLD - 1;
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return resolver + " [rtt=" + Math.round(rtt) + "ms, errors=" + Math.round(errorRate * 100) + "%]";
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.resolver;
+
+import io.github.krlvm.powertunnel.plugins.dns.metrics.DNSMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.dnssec.ValidatingResolver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DNSSEC validating resolver with the root trust anchors loaded,
+ * validated keys are cached for their TTL and shared by all lookups
+ *
+ * Validation results and time are recorded in the metrics registry,
+ * so they add up across resolvers replaced on reload
+ */
+public class DNSSECResolver implements Resolver, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DNSSECResolver.class);
+
+    private static final String ROOT_TRUST_ANCHORS = "/root.key";
+    private static final int KEY_CACHE_SIZE = 4096;
+    private static final long KEY_CACHE_MAX_TTL = TimeUnit.DAYS.toSeconds(1);
+
+    // Keys of the most popular zones, the root key is validated on the way
+    private static final String[] PRELOADED_ZONES = { ".", "com.", "net.", "org.", "io.", "ru." };
+
+    private final ValidatingResolver resolver;
+    private final PooledResolver pool;
+    private final DNSMetrics metrics;
+
+    /**
+     * @param upstream - resolver validated responses are requested from
+     * @param trustAnchors - trust anchors file, null to use the root zone anchors
+     * @param threads - number of threads verifying signatures
+     * @param metrics - metrics registry
+     */
+    public DNSSECResolver(Resolver upstream, Path trustAnchors, int threads, DNSMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        // Responses of independent lookups are validated in parallel
+        this.pool = new PooledResolver(upstream, threads, "dnssec-validator");
+        this.resolver = new ValidatingResolver(pool);
+
+        final Properties properties = new Properties();
+        properties.setProperty("dnsjava.dnssec.keycache.max_size", String.valueOf(KEY_CACHE_SIZE));
+        properties.setProperty("dnsjava.dnssec.keycache.max_ttl", String.valueOf(KEY_CACHE_MAX_TTL));
+        resolver.init(properties);
+
+        try (InputStream in = trustAnchors != null
+                ? Files.newInputStream(trustAnchors)
+                : DNSSECResolver.class.getResourceAsStream(ROOT_TRUST_ANCHORS)) {
+            if (in == null) throw new IOException("Root trust anchors are missing");
+            resolver.loadTrustAnchors(in);
+        }
+    }
+
+    /**
+     * Fetches and validates keys of the root and popular top-level zones
+     * in the background, so that the first lookups do not wait for them
+     */
+    public void preload() {
+        final long start = System.nanoTime();
+        final AtomicInteger remaining = new AtomicInteger(PRELOADED_ZONES.length);
+        for (String zone : PRELOADED_ZONES) {
+            final Message query;
+            try {
+                query = Message.newQuery(Record.newRecord(Name.fromString(zone), Type.DNSKEY, DClass.IN));
+            } catch (TextParseException ex) {
+                throw new AssertionError(ex);
+            }
+            resolver.sendAsync(query).whenComplete((response, ex) -> {
+                if (ex != null || !response.getHeader().getFlag(Flags.AD)) {
+                    LOGGER.debug("Failed to preload DNSSEC keys of zone '{}'", zone);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    LOGGER.debug("Preloaded DNSSEC keys in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+            });
+        }
+    }
+
+    /**
+     * Signatures are verified on the validator's own threads whatever the executor is,
+     * verification is CPU-bound and gains nothing from virtual threads, and dnsjava's
+     * validating resolver cannot pass an executor on to the upstream resolver
+     */
+    @Override
+    public CompletionStage<Message> sendAsync(Message query, Executor executor) {
+        return sendAsync(query);
+    }
+
+    @Override
+    public CompletionStage<Message> sendAsync(Message query) {
+        final long start = System.nanoTime();
+        return resolver.sendAsync(query).whenComplete((response, ex) -> {
+            metrics.recordValidation(System.nanoTime() - start);
+            if (response == null) return;
+            if (response.getHeader().getFlag(Flags.AD)) {
+                metrics.recordSecure();
+            } else if (response.getRcode() == Rcode.SERVFAIL) {
+                // Validator answers SERVFAIL when the response is bogus
+                metrics.recordBogus();
+            }
+        });
+    }
+
+    /**
+     * Shuts down the validator threads
+     */
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    @Override
+    public void setPort(int port) {
+        resolver.setPort(port);
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+        resolver.setTCP(flag);
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+        resolver.setIgnoreTruncation(flag);
+    }
+
+    @Override
+    public void setEDNS(int version, int payloadSize, int flags, List<EDNSOption> options) {
+        resolver.setEDNS(version, payloadSize, flags, options);
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+        resolver.setTSIGKey(key);
+    }
+
+    @Override
+    public void setTimeout(Duration timeout) {
+        resolver.setTimeout(timeout);
+    }
+
+    @Override
+    public Duration getTimeout() {
+        return resolver.getTimeout();
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.resolver;
+
+import io.github.krlvm.powertunnel.plugins.dns.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
+
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * DNS-over-TLS resolver (RFC 7858)
+ *
+ * Queries are pipelined on a single long-lived connection and answered
+ * out of order, responses are matched by message ID. Every query is
+ * sent with a fresh ID unique on the connection, the original one is
+ * restored in the response.
+ *
+ * TLS sessions are cached, so reconnecting after the server has closed
+ * an idle connection takes an abbreviated handshake. Queries that were
+ * in flight on a closed connection are sent once more on a new one.
+ */
+public class DotResolver implements Resolver, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DotResolver.class);
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("dns-tls-timeout")
+    );
+
+    // Connection is closed after this time without queries in flight (RFC 7766)
+    private static final int IDLE_TIMEOUT = 30_000;
+    private static final int SESSION_CACHE_SIZE = 16;
+
+    private final String host;
+    private final int port;
+    private final SSLSocketFactory factory;
+
+    private volatile Duration timeout = Duration.ofSeconds(10);
+    private volatile OPTRecord opt;
+
+    private volatile Connection connection;
+    private volatile boolean closed;
+
+    /**
+     * @param host - server hostname or IP address, it is verified against the server certificate
+     * @param port - server port
+     */
+    public DotResolver(String host, int port) {
+        this.host = host;
+        this.port = port;
+        try {
+            final SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            this.factory = context.getSocketFactory();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("TLS is not available: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public CompletionStage<Message> sendAsync(Message query) {
+        return sendAsync(query, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param executor - executor connecting to the server if there is no open connection
+     */
+    @Override
+    public CompletionStage<Message> sendAsync(Message query, Executor executor) {
+        final Message copy = query.clone();
+        final OPTRecord opt = this.opt;
+        if (opt != null && copy.getOPT() == null) {
+            copy.addRecord(opt, Section.ADDITIONAL);
+        }
+        final Pending pending = new Pending(copy, query.getHeader().getID(), executor);
+
+        final ScheduledFuture<?> timer = TIMER.schedule(
+                () -> pending.future.completeExceptionally(new SocketTimeoutException("Query timed out")),
+                timeout.toMillis(), TimeUnit.MILLISECONDS
+        );
+        pending.future.whenComplete((response, ex) -> {
+            timer.cancel(false);
+            pending.release();
+        });
+
+        final Connection current = getOpenConnection();
+        if (current != null) {
+            send(current, pending);
+        } else {
+            reconnect(pending);
+        }
+        return pending.future;
+    }
+
+    /**
+     * Sends the query on a new connection, the handshake is done
+     * on the query executor, never on the reader or the caller thread
+     */
+    private void reconnect(Pending pending) {
+        try {
+            pending.executor.execute(() -> send(null, pending));
+        } catch (RejectedExecutionException ex) {
+            pending.future.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * @param connection - connection to send the query on, null to open one if needed
+     */
+    private void send(Connection connection, Pending pending) {
+        if (pending.future.isDone()) return;
+        try {
+            (connection != null ? connection : connect()).send(pending);
+        } catch (IOException ex) {
+            if (connection != null && !pending.retried) {
+                // Connection has been closed after it was picked
+                pending.retried = true;
+                reconnect(pending);
+                return;
+            }
+            pending.future.completeExceptionally(ex);
+        }
+    }
+
+    private Connection getOpenConnection() {
+        final Connection connection = this.connection;
+        return connection != null && !connection.closed ? connection : null;
+    }
+
+    private synchronized Connection connect() throws IOException {
+        if (closed) throw new IOException("Resolver is closed");
+        if (connection != null && !connection.closed) return connection;
+        final int connectTimeout = (int) timeout.toMillis();
+        final Socket plain = new Socket();
+        try {
+            plain.connect(new InetSocketAddress(host, port), connectTimeout);
+            plain.setTcpNoDelay(true);
+            // Explicit peer host and port let the session be resumed on reconnect
+            final SSLSocket socket = (SSLSocket) factory.createSocket(plain, host, port, true);
+            final SSLParameters parameters = socket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            socket.setSSLParameters(parameters);
+            socket.setSoTimeout(connectTimeout);
+            socket.startHandshake();
+            socket.setSoTimeout(IDLE_TIMEOUT);
+            connection = new Connection(socket);
+        } catch (IOException ex) {
+            plain.close();
+            throw ex;
+        }
+        final Thread reader = new Thread(connection, "dns-tls-" + host);
+        reader.setDaemon(true);
+        reader.start();
+        LOGGER.debug("Connected to DNS-over-TLS server {}:{}", host, port);
+        return connection;
+    }
+
+    /**
+     * Closes the connection, no new one is opened after that
+     */
+    @Override
+    public void close() {
+        final Connection connection;
+        synchronized (this) {
+            closed = true;
+            connection = this.connection;
+        }
+        if (connection != null) connection.close(null);
+    }
+
+    @Override
+    public void setPort(int port) {
+        // Port is given by the upstream address
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+        // Always TCP
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+        // Responses over TCP are never truncated
+    }
+
+    @Override
+    public void setEDNS(int version, int payloadSize, int flags, List<EDNSOption> options) {
+        if (version == -1) {
+            opt = null;
+            return;
+        }
+        if (version != 0) throw new IllegalArgumentException("Invalid EDNS version, must be 0 or -1");
+        opt = new OPTRecord(payloadSize == 0 ? SimpleResolver.DEFAULT_EDNS_PAYLOADSIZE : payloadSize, 0, version, flags, options);
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+        LOGGER.warn("TSIG is not supported by the DNS-over-TLS resolver, the key is ignored");
+    }
+
+    @Override
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public String toString() {
+        return "DotResolver [" + host + ":" + port + "]";
+    }
+
+    private static class Pending {
+
+        private final Message query;
+        private final int originalId;
+        private final Executor executor;
+        private final CompletableFuture<Message> future = new CompletableFuture<>();
+
+        private volatile Connection connection;
+        private volatile int id;
+        private volatile boolean retried;
+
+        private Pending(Message query, int originalId, Executor executor) {
+            this.query = query;
+            this.originalId = originalId;
+            this.executor = executor;
+        }
+
+        private void release() {
+            final Connection connection = this.connection;
+            if (connection != null) {
+                connection.pending.remove(id, this);
+            }
+        }
+    }
+
+    private class Connection implements Runnable {
+
+        private final SSLSocket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+
+        private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+        private volatile boolean closed;
+
+        private Connection(SSLSocket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        private void send(Pending query) throws IOException {
+            int id;
+            do {
+                id = ThreadLocalRandom.current().nextInt(0x10000);
+            } while (pending.putIfAbsent(id, query) != null);
+            query.id = id;
+            query.connection = this;
+
+            final byte[] wire;
+            synchronized (query.query) {
+                query.query.getHeader().setID(id);
+                wire = query.query.toWire(Message.MAXLENGTH);
+            }
+            try {
+                synchronized (out) {
+                    out.write(wire.length >>> 8);
+                    out.write(wire.length);
+                    out.write(wire);
+                    out.flush();
+                }
+            } catch (IOException ex) {
+                pending.remove(id, query);
+                close(ex);
+                throw ex;
+            }
+            if (closed && pending.remove(id, query)) {
+                throw new IOException("Connection is closed");
+            }
+        }
+
+        @Override
+        public void run() {
+            IOException failure = null;
+            try {
+                while (true) {
+                    final int high;
+                    try {
+                        high = in.read();
+                    } catch (SocketTimeoutException ex) {
+                        if (pending.isEmpty()) break;
+                        continue;
+                    }
+                    if (high == -1) break;
+                    final byte[] data = new byte[high << 8 | in.readUnsignedByte()];
+                    in.readFully(data);
+                    dispatch(data);
+                }
+            } catch (IOException ex) {
+                failure = ex;
+            }
+            close(failure);
+        }
+
+        private void dispatch(byte[] data) {
+            final Message response;
+            try {
+                response = new Message(data);
+            } catch (IOException ex) {
+                LOGGER.debug("Malformed response from {}:{}: {}", host, port, ex.getMessage());
+                return;
+            }
+            // Query may have already timed out
+            final Pending query = pending.remove(response.getHeader().getID());
+            if (query == null) return;
+            final Record question = query.query.getQuestion();
+            if (question != null && !question.equals(response.getQuestion())) {
+                query.future.completeExceptionally(new WireParseException("Response does not match the query"));
+                return;
+            }
+            response.getHeader().setID(query.originalId);
+            query.future.complete(response);
+        }
+
+        private void close(IOException failure) {
+            synchronized (DotResolver.this) {
+                if (closed) return;
+                closed = true;
+                if (connection == this) connection = null;
+            }
+            try {
+                socket.close();
+            } catch (IOException ignore) {}
+            LOGGER.debug("Connection to DNS-over-TLS server {}:{} is closed", host, port);
+
+            for (Pending query : pending.values()) {
+                if (!pending.remove(query.id, query) || query.future.isDone()) continue;
+                if (!query.retried) {
+                    // Server may close the connection while queries are in flight
+                    query.retried = true;
+                    reconnect(query);
+                } else {
+                    query.future.completeExceptionally(failure != null ? failure : new EOFException("Connection is closed"));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.resolver;
+
+import io.github.krlvm.powertunnel.plugins.dns.metrics.DNSMetrics;
+import org.xbill.DNS.*;
+
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Records response times and failures of an upstream resolver
+ */
+public class MeasuredResolver implements Resolver {
+
+    private final Resolver resolver;
+    private final DNSMetrics.UpstreamMetrics metrics;
+
+    public MeasuredResolver(Resolver resolver, DNSMetrics.UpstreamMetrics metrics) {
+        this.resolver = resolver;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public CompletionStage<Message> sendAsync(Message query) {
+        return measure(System.nanoTime(), resolver.sendAsync(query));
+    }
+
+    @Override
+    public CompletionStage<Message> sendAsync(Message query, Executor executor) {
+        return measure(System.nanoTime(), resolver.sendAsync(query, executor));
+    }
+
+    private CompletionStage<Message> measure(long start, CompletionStage<Message> stage) {
+        return stage.whenComplete((response, ex) -> {
+            if (ex == null) {
+                metrics.recordResponse(System.nanoTime() - start);
+                return;
+            }
+            final Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            if (cause instanceof SocketTimeoutException || cause instanceof TimeoutException) {
+                metrics.recordTimeout();
+            } else {
+                metrics.recordError();
+            }
+        });
+    }
+
+    @Override
+    public void setPort(int port) {
+        resolver.setPort(port);
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+        resolver.setTCP(flag);
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+        resolver.setIgnoreTruncation(flag);
+    }
+
+    @Override
+    public void setEDNS(int version, int payloadSize, int flags, List<EDNSOption> options) {
+        resolver.setEDNS(version, payloadSize, flags, options);
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+        resolver.setTSIGKey(key);
+    }
+
+    @Override
+    public void setTimeout(Duration timeout) {
+        resolver.setTimeout(timeout);
+    }
+
+    @Override
+    public Duration getTimeout() {
+        return resolver.getTimeout();
+    }
+
+    public Resolver getResolver() {
+        return resolver;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.resolver;
+
+import org.xbill.DNS.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Base for resolvers spreading queries over several upstreams,
+ * settings are applied to every upstream
+ */
+public abstract class MultiResolver implements Resolver {
+
+    protected final List<Resolver> resolvers;
+    private Duration timeout = Duration.ofSeconds(5);
+
+    protected MultiResolver(List<Resolver> resolvers) {
+        if (resolvers.isEmpty()) throw new IllegalArgumentException("No upstream resolvers");
+        this.resolvers = Collections.unmodifiableList(new ArrayList<>(resolvers));
+    }
+
+    @Override
+    public void setPort(int port) {
+        for (Resolver resolver : resolvers) resolver.setPort(port);
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+        for (Resolver resolver : resolvers) resolver.setTCP(flag);
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+        for (Resolver resolver : resolvers) resolver.setIgnoreTruncation(flag);
+    }
+
+    @Override
+    public void setEDNS(int version, int payloadSize, int flags, List<EDNSOption> options) {
+        for (Resolver resolver : resolvers) resolver.setEDNS(version, payloadSize, flags, options);
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+        for (Resolver resolver : resolvers) resolver.setTSIGKey(key);
+    }
+
+    @Override
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+        for (Resolver resolver : resolvers) resolver.setTimeout(timeout);
+    }
+
+    @Override
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public CompletionStage<Message> sendAsync(Message query) {
+        return sendAsync(query, ForkJoinPool.commonPool());
+    }
+
+    public List<Resolver> getResolvers() {
+        return resolvers;
+    }
+
+    /**
+     * A response that is worth returning to the client,
+     * SERVFAIL, REFUSED and similar ones are not
+     */
+    protected static boolean isUsable(Message response) {
+        final int rcode = response.getRcode();
+        return rcode == Rcode.NOERROR || rcode == Rcode.NXDOMAIN;
+    }
+}
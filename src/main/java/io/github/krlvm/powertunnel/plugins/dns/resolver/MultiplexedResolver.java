@@ -0,0 +1,126 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.resolver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.*;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Plain DNS resolver sending UDP queries through a shared {@link UdpMultiplexer},
+ * truncated responses are retried over TCP
+ */
+public class MultiplexedResolver implements Resolver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MultiplexedResolver.class);
+
+    private final UdpMultiplexer multiplexer;
+    private final SimpleResolver tcp;
+
+    private volatile InetSocketAddress address;
+    private volatile Duration timeout = Duration.ofSeconds(10);
+    private volatile OPTRecord opt = new OPTRecord(SimpleResolver.DEFAULT_EDNS_PAYLOADSIZE, 0, 0, 0);
+    private volatile boolean useTCP;
+    private volatile boolean ignoreTruncation;
+
+    public MultiplexedResolver(UdpMultiplexer multiplexer, InetSocketAddress address) {
+        this.multiplexer = multiplexer;
+        this.address = address;
+        this.tcp = new SimpleResolver(address);
+        this.tcp.setTCP(true);
+        this.tcp.setTimeout(timeout);
+    }
+
+    @Override
+    public CompletionStage<Message> sendAsync(Message query) {
+        return sendAsync(query, ForkJoinPool.commonPool());
+    }
+
+    @Override
+    public CompletionStage<Message> sendAsync(Message query, Executor executor) {
+        if (useTCP) return tcp.sendAsync(query, executor);
+
+        final Message copy = query.clone();
+        final OPTRecord opt = this.opt;
+        if (opt != null && copy.getOPT() == null) {
+            copy.addRecord(opt, Section.ADDITIONAL);
+        }
+        return multiplexer.send(copy, query.getHeader().getID(), address, timeout.toMillis(), executor)
+                .thenCompose(response -> {
+                    if (ignoreTruncation || !response.getHeader().getFlag(Flags.TC)) {
+                        return CompletableFuture.completedFuture(response);
+                    }
+                    return tcp.sendAsync(query, executor);
+                });
+    }
+
+    @Override
+    public void setPort(int port) {
+        address = new InetSocketAddress(address.getAddress(), port);
+        tcp.setPort(port);
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+        useTCP = flag;
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+        ignoreTruncation = flag;
+    }
+
+    @Override
+    public void setEDNS(int version, int payloadSize, int flags, List<EDNSOption> options) {
+        tcp.setEDNS(version, payloadSize, flags, options);
+        if (version == -1) {
+            opt = null;
+            return;
+        }
+        opt = new OPTRecord(payloadSize == 0 ? SimpleResolver.DEFAULT_EDNS_PAYLOADSIZE : payloadSize, 0, version, flags, options);
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+        LOGGER.warn("TSIG is not supported by the multiplexed resolver, the key is ignored");
+    }
+
+    @Override
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+        tcp.setTimeout(timeout);
+    }
+
+    @Override
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public String toString() {
+        return "MultiplexedResolver [" + address + "]";
+    }
+}
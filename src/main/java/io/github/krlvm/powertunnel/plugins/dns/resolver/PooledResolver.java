@@ -0,0 +1,143 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.resolver;
+
+import org.xbill.DNS.*;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers upstream responses on a bounded fork-join pool
+ *
+ * dnsjava completes responses on its single I/O thread, so all CPU-bound
+ * processing chained to them, like DNSSEC signature verification, would
+ * run there one response after another. Returned futures also make
+ * the pool the default executor of the async stages chained to them,
+ * this takes effect on Java 9 and newer.
+ */
+public class PooledResolver implements Resolver, Closeable {
+
+    private final Resolver resolver;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param resolver - upstream resolver
+     * @param parallelism - number of pool threads
+     * @param name - pool thread name prefix
+     */
+    public PooledResolver(Resolver resolver, int parallelism, String name) {
+        if (parallelism <= 0) throw new IllegalArgumentException("Pool parallelism must be positive");
+        this.resolver = resolver;
+        final AtomicInteger counter = new AtomicInteger();
+        this.pool = new ForkJoinPool(parallelism, p -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName(name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, null, true);
+    }
+
+    @Override
+    public CompletionStage<Message> sendAsync(Message query) {
+        final PoolFuture<Message> future = new PoolFuture<>(pool);
+        resolver.sendAsync(query).whenComplete((response, ex) -> {
+            try {
+                pool.execute(() -> {
+                    if (ex != null) {
+                        future.completeExceptionally(ex);
+                    } else {
+                        future.complete(response);
+                    }
+                });
+            } catch (RejectedExecutionException rejected) {
+                future.completeExceptionally(rejected);
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public void setPort(int port) {
+        resolver.setPort(port);
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+        resolver.setTCP(flag);
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+        resolver.setIgnoreTruncation(flag);
+    }
+
+    @Override
+    public void setEDNS(int version, int payloadSize, int flags, List<EDNSOption> options) {
+        resolver.setEDNS(version, payloadSize, flags, options);
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+        resolver.setTSIGKey(key);
+    }
+
+    @Override
+    public void setTimeout(Duration timeout) {
+        resolver.setTimeout(timeout);
+    }
+
+    @Override
+    public Duration getTimeout() {
+        return resolver.getTimeout();
+    }
+
+    /**
+     * Shuts down the pool, responses arriving later are failed
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    private static class PoolFuture<T> extends CompletableFuture<T> {
+
+        private final Executor executor;
+
+        private PoolFuture(Executor executor) {
+            this.executor = executor;
+        }
+
+        // Overrides CompletableFuture methods added in Java 9, unused on Java 8
+
+        public Executor defaultExecutor() {
+            return executor;
+        }
+
+        public <U> CompletableFuture<U> newIncompleteFuture() {
+            return new PoolFuture<>(executor);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.resolver;
+
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Resolver;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends a query to the first N upstreams at once
+ * and returns the first usable response
+ */
+public class RacingResolver extends MultiResolver {
+
+    private final int fanout;
+
+    /**
+     * @param resolvers - upstreams ordered by priority
+     * @param fanout - number of upstreams a query is sent to
+     */
+    public RacingResolver(List<Resolver> resolvers, int fanout) {
+        super(resolvers);
+        if (fanout <= 0) throw new IllegalArgumentException("Race fanout must be positive");
+        this.fanout = Math.min(fanout, resolvers.size());
+    }
+
+    @Override
+    public CompletionStage<Message> sendAsync(Message query, Executor executor) {
+        final CompletableFuture<Message> result = new CompletableFuture<>();
+        final AtomicInteger remaining = new AtomicInteger(fanout);
+        final AtomicReference<Message> unusable = new AtomicReference<>();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        for (int i = 0; i < fanout; i++) {
+            final CompletionStage<Message> stage;
+            try {
+                stage = resolvers.get(i).sendAsync(query.clone(), executor);
+            } catch (RuntimeException ex) {
+                error.set(ex);
+                if (remaining.decrementAndGet() == 0) complete(result, unusable, error);
+                continue;
+            }
+            stage.whenComplete((response, ex) -> {
+                if (response != null && isUsable(response)) {
+                    result.complete(response);
+                    return;
+                }
+                if (response != null) {
+                    unusable.set(response);
+                } else {
+                    error.set(ex);
+                }
+                if (remaining.decrementAndGet() == 0) complete(result, unusable, error);
+            });
+        }
+        return result;
+    }
+
+    private static void complete(CompletableFuture<Message> result,
+                                 AtomicReference<Message> unusable, AtomicReference<Throwable> error) {
+        // All upstreams failed, prefer an actual response to an exception
+        if (unusable.get() != null) {
+            result.complete(unusable.get());
+        } else {
+            result.completeExceptionally(error.get());
+        }
+    }
+
+    public int getFanout() {
+        return fanout;
+    }
+
+    @Override
+    public String toString() {
+        return "RacingResolver [" + resolvers + ", fanout=" + fanout + "]";
+    }
+}
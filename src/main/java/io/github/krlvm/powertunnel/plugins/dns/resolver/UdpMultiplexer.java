@@ -0,0 +1,451 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.resolver;
+
+import io.github.krlvm.powertunnel.plugins.dns.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Record;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sends UDP queries to any number of servers through a small fixed
+ * set of sockets served by a single selector thread
+ *
+ * Every query is sent from a randomly picked socket with a random
+ * message ID, sockets are bound to random ports and replaced
+ * periodically. A response is accepted only if it comes from the
+ * queried server and carries the query ID and question.
+ */
+public class UdpMultiplexer implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UdpMultiplexer.class);
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("dns-udp-timeout")
+    );
+
+    // Socket is rebound to a new random port after this time
+    private static final long ROTATION_INTERVAL = 60_000;
+    // Time a replaced socket is kept to receive late responses
+    private static final long RETIRE_DELAY = 1000;
+    // Time queries in flight are given to complete when the multiplexer is closed
+    private static final long CLOSE_DELAY = 30_000;
+    private static final int ID_ATTEMPTS = 16;
+    private static final int RECEIVE_BUFFER = 1 << 20;
+
+    private final Selector selector;
+    private final AtomicReferenceArray<Socket> sockets;
+    private final List<Socket> retired = new ArrayList<>();
+    private final SecureRandom random = new SecureRandom();
+
+    private volatile boolean closed;
+
+    /**
+     * @param sockets - number of sockets
+     */
+    public UdpMultiplexer(int sockets) throws IOException {
+        if (sockets <= 0) throw new IllegalArgumentException("Number of sockets must be positive");
+        this.selector = Selector.open();
+        this.sockets = new AtomicReferenceArray<>(sockets);
+        try {
+            for (int i = 0; i < sockets; i++) {
+                this.sockets.set(i, new Socket());
+            }
+        } catch (IOException ex) {
+            selector.close();
+            throw ex;
+        }
+        final Thread thread = new Thread(this::run, "dns-udp-selector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param query - query to send, its ID is replaced
+     * @param id - ID to restore in the response
+     * @param server - server address
+     * @param timeout - time to wait for the response in milliseconds
+     * @param executor - executor to complete the returned future on
+     */
+    public CompletableFuture<Message> send(Message query, int id, InetSocketAddress server, long timeout, Executor executor) {
+        final Pending pending = new Pending(query, id, server, executor);
+        if (closed) {
+            pending.future.completeExceptionally(new ClosedChannelException());
+            return pending.future;
+        }
+        final ScheduledFuture<?> timer = TIMER.schedule(pending::timeout, timeout, TimeUnit.MILLISECONDS);
+        pending.future.whenComplete((response, ex) -> timer.cancel(false));
+
+        // Socket may be replaced right after it is picked
+        for (int attempt = 0; ; attempt++) {
+            try {
+                send(pending);
+                break;
+            } catch (ClosedChannelException ex) {
+                if (attempt > 0 || closed) {
+                    pending.fail(ex);
+                    break;
+                }
+            } catch (IOException ex) {
+                pending.fail(ex);
+                break;
+            }
+        }
+        return pending.future;
+    }
+
+    private void send(Pending pending) throws IOException {
+        final Socket socket = sockets.get(random.nextInt(sockets.length()));
+        int id = -1;
+        for (int i = 0; i < ID_ATTEMPTS; i++) {
+            final int candidate = random.nextInt(0x10000);
+            if (socket.pending.putIfAbsent(candidate, pending)) {
+                id = candidate;
+                break;
+            }
+        }
+        if (id == -1) throw new IOException("Too many queries in flight");
+        socket.inFlight.incrementAndGet();
+        pending.socket = socket;
+        pending.id = id;
+
+        pending.query.getHeader().setID(id);
+        final ByteBuffer wire = ByteBuffer.wrap(pending.query.toWire());
+        try {
+            // Non-blocking socket sends nothing if its buffer is full
+            if (socket.channel.send(wire, pending.server) == 0) {
+                throw new IOException("Socket send buffer is full");
+            }
+        } catch (IOException ex) {
+            socket.release(pending);
+            throw ex;
+        }
+        // Query may have timed out before it got its slot
+        if (pending.timedOut) {
+            socket.release(pending);
+        }
+    }
+
+    private void run() {
+        final ByteBuffer buffer = ByteBuffer.allocate(0xFFFF);
+        while (!closed) {
+            try {
+                selector.select(1000);
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to select UDP sockets: {}", ex.getMessage(), ex);
+                break;
+            }
+            final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                final SelectionKey key = iterator.next();
+                iterator.remove();
+                if (!key.isValid()) continue;
+                final Socket socket = (Socket) key.attachment();
+                try {
+                    receive(socket, buffer);
+                } catch (IOException ex) {
+                    LOGGER.debug("Failed to receive DNS response: {}", ex.getMessage(), ex);
+                }
+            }
+            rotate();
+        }
+        shutdown();
+    }
+
+    private void receive(Socket socket, ByteBuffer buffer) throws IOException {
+        while (true) {
+            buffer.clear();
+            final SocketAddress from = socket.channel.receive(buffer);
+            if (from == null) return;
+            buffer.flip();
+            if (buffer.remaining() < 12) continue;
+
+            // Late responses and responses from other hosts are dropped before parsing
+            final int id = buffer.getShort(0) & 0xFFFF;
+            final Pending pending = socket.pending.get(id);
+            if (pending == null || !pending.server.equals(from)) continue;
+
+            final Message response;
+            try {
+                response = new Message(buffer);
+            } catch (IOException ex) {
+                continue;
+            }
+            final Record question = pending.query.getQuestion();
+            if (question != null && !question.equals(response.getQuestion())) continue;
+            if (!socket.release(pending)) continue;
+
+            response.getHeader().setID(pending.originalId);
+            pending.complete(response);
+        }
+    }
+
+    private void rotate() {
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < sockets.length(); i++) {
+            final Socket socket = sockets.get(i);
+            if (now - socket.createdAt < ROTATION_INTERVAL) continue;
+            try {
+                sockets.set(i, new Socket());
+            } catch (IOException ex) {
+                LOGGER.debug("Failed to open UDP socket: {}", ex.getMessage(), ex);
+                continue;
+            }
+            socket.retiredAt = now;
+            retired.add(socket);
+        }
+        retired.removeIf(socket -> {
+            if (socket.inFlight.get() > 0 || now - socket.retiredAt < RETIRE_DELAY) return false;
+            socket.close();
+            return true;
+        });
+    }
+
+    private void shutdown() {
+        for (int i = 0; i < sockets.length(); i++) {
+            sockets.get(i).close();
+        }
+        retired.forEach(Socket::close);
+        retired.clear();
+        try {
+            selector.close();
+        } catch (IOException ignore) {}
+    }
+
+    public int getSockets() {
+        return sockets.length();
+    }
+
+    /**
+     * Closes the sockets once queries in flight had time to complete
+     */
+    @Override
+    public void close() {
+        TIMER.schedule(() -> {
+            closed = true;
+            selector.wakeup();
+        }, CLOSE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private class Socket {
+
+        private final DatagramChannel channel;
+        private final long createdAt = System.currentTimeMillis();
+        private long retiredAt;
+
+        // Queries in flight by message ID, a table of all 65536 IDs would take
+        // hundreds of kilobytes for every socket and be reallocated on every rotation
+        private final PendingTable pending = new PendingTable();
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private Socket() throws IOException {
+            channel = DatagramChannel.open();
+            try {
+                channel.configureBlocking(false);
+                // Responses to all queries arrive on a few sockets
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+                // Ephemeral port picked by the system
+                channel.bind(null);
+                channel.register(selector, SelectionKey.OP_READ, this);
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        /**
+         * @return false if the query has already been released
+         */
+        private boolean release(Pending query) {
+            if (!pending.remove(query.id, query)) return false;
+            inFlight.decrementAndGet();
+            return true;
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException ignore) {}
+            for (Pending query : pending.values()) {
+                if (release(query)) {
+                    query.fail(new ClosedChannelException());
+                }
+            }
+        }
+    }
+
+    /**
+     * Open addressing table of queries in flight keyed by message ID,
+     * it grows and shrinks with the number of queries, and IDs are not boxed
+     *
+     * IDs are random, so their low bits are used as the hash as is
+     */
+    private static class PendingTable {
+
+        private static final int MIN_CAPACITY = 16;
+
+        private int[] ids = new int[MIN_CAPACITY];
+        private Pending[] queries = new Pending[MIN_CAPACITY];
+        private int size;
+
+        /**
+         * @return false if the ID is taken
+         */
+        private synchronized boolean putIfAbsent(int id, Pending query) {
+            if (find(id) != -1) return false;
+            if ((size + 1) * 2 > queries.length) resize(queries.length * 2);
+            insert(id, query);
+            size++;
+            return true;
+        }
+
+        private synchronized Pending get(int id) {
+            final int slot = find(id);
+            return slot != -1 ? queries[slot] : null;
+        }
+
+        /**
+         * @return false if the ID is not taken by the query
+         */
+        private synchronized boolean remove(int id, Pending query) {
+            final int slot = find(id);
+            if (slot == -1 || queries[slot] != query) return false;
+            delete(slot);
+            size--;
+            if (queries.length > MIN_CAPACITY && size * 8 < queries.length) resize(queries.length / 2);
+            return true;
+        }
+
+        private synchronized List<Pending> values() {
+            final List<Pending> values = new ArrayList<>(size);
+            for (Pending query : queries) {
+                if (query != null) values.add(query);
+            }
+            return values;
+        }
+
+        private int find(int id) {
+            final int mask = queries.length - 1;
+            for (int slot = id & mask; queries[slot] != null; slot = (slot + 1) & mask) {
+                if (ids[slot] == id) return slot;
+            }
+            return -1;
+        }
+
+        private void insert(int id, Pending query) {
+            final int mask = queries.length - 1;
+            int slot = id & mask;
+            while (queries[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            ids[slot] = id;
+            queries[slot] = query;
+        }
+
+        /**
+         * Shifts the following entries back into the freed slot,
+         * so lookups need no tombstones
+         */
+        private void delete(int slot) {
+            final int mask = queries.length - 1;
+            int gap = slot;
+            for (int i = (slot + 1) & mask; queries[i] != null; i = (i + 1) & mask) {
+                // Entry can fill the gap if the gap is not before its home slot
+                if (((i - ids[i]) & mask) >= ((i - gap) & mask)) {
+                    ids[gap] = ids[i];
+                    queries[gap] = queries[i];
+                    gap = i;
+                }
+            }
+            queries[gap] = null;
+        }
+
+        private void resize(int capacity) {
+            final int[] oldIds = ids;
+            final Pending[] oldQueries = queries;
+            ids = new int[capacity];
+            queries = new Pending[capacity];
+            for (int i = 0; i < oldQueries.length; i++) {
+                if (oldQueries[i] != null) insert(oldIds[i], oldQueries[i]);
+            }
+        }
+    }
+
+    private static class Pending {
+
+        private final Message query;
+        private final int originalId;
+        private final InetSocketAddress server;
+        private final Executor executor;
+        private final CompletableFuture<Message> future = new CompletableFuture<>();
+
+        private volatile Socket socket;
+        private volatile int id;
+        private volatile boolean timedOut;
+
+        private Pending(Message query, int originalId, InetSocketAddress server, Executor executor) {
+            this.query = query;
+            this.originalId = originalId;
+            this.server = server;
+            this.executor = executor;
+        }
+
+        private void timeout() {
+            timedOut = true;
+            final Socket socket = this.socket;
+            if (socket != null && !socket.release(this)) return;
+            fail(new SocketTimeoutException("Query timed out"));
+        }
+
+        private void complete(Message response) {
+            try {
+                executor.execute(() -> future.complete(response));
+            } catch (RejectedExecutionException ex) {
+                future.complete(response);
+            }
+        }
+
+        private void fail(Throwable ex) {
+            try {
+                executor.execute(() -> future.completeExceptionally(ex));
+            } catch (RejectedExecutionException rejected) {
+                future.completeExceptionally(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.server;
+
+import io.github.krlvm.powertunnel.plugins.dns.IPPreference;
+import io.github.krlvm.powertunnel.plugins.dns.NegativeAnswerException;
+import io.github.krlvm.powertunnel.plugins.dns.ResolutionEngine;
+import io.github.krlvm.powertunnel.plugins.dns.ResolverPipeline;
+import io.github.krlvm.powertunnel.plugins.dns.filter.Blocklist;
+import io.github.krlvm.powertunnel.plugins.dns.metrics.DNSMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Local DNS server answering UDP and TCP queries
+ * through the current resolver pipeline
+ *
+ * Address queries are served by the resolution engine, so they share
+ * its caches, hosts file and blocklist with the proxy, other queries
+ * are forwarded upstream as is. All sockets are served by a single
+ * selector thread, queries are answered as their resolution completes.
+ */
+public class LocalDNSServer implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalDNSServer.class);
+
+    private static final int UDP_PAYLOAD_SIZE = 512;
+    private static final int MAX_PAYLOAD_SIZE = 4096;
+    private static final int BLOCKED_TTL = 60;
+    // Hosts answers and answers that are not cached have no TTL of their own,
+    // stale answers are served with 30 seconds (RFC 8767, Section 4)
+    private static final long MIN_TTL = 30;
+    // Time the server thread is given to release the sockets on close
+    private static final long CLOSE_TIMEOUT = 2000;
+    // TCP connection is closed after this time without queries in flight (RFC 7766)
+    private static final long TCP_IDLE_TIMEOUT = 10_000;
+    private static final int MAX_TCP_CONNECTIONS = 128;
+
+    private final AtomicReference<ResolverPipeline> pipeline;
+    private final DNSMetrics metrics;
+
+    private final Selector selector;
+    private final DatagramChannel udp;
+    private final ServerSocketChannel tcp;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private int connections;
+
+    private volatile boolean closed;
+
+    /**
+     * @param pipeline - current resolver pipeline, it is replaced when the configuration changes
+     * @param address - address to listen on, the server answers anyone who can reach it
+     */
+    public LocalDNSServer(AtomicReference<ResolverPipeline> pipeline, DNSMetrics metrics,
+                          InetSocketAddress address) throws IOException {
+        this.pipeline = pipeline;
+        this.metrics = metrics;
+        this.selector = Selector.open();
+        DatagramChannel udp = null;
+        ServerSocketChannel tcp = null;
+        try {
+            udp = DatagramChannel.open();
+            udp.configureBlocking(false);
+            udp.bind(address);
+            udp.register(selector, SelectionKey.OP_READ);
+
+            tcp = ServerSocketChannel.open();
+            tcp.configureBlocking(false);
+            tcp.bind(address);
+            tcp.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            if (udp != null) udp.close();
+            if (tcp != null) tcp.close();
+            selector.close();
+            throw ex;
+        }
+        this.udp = udp;
+        this.tcp = tcp;
+
+        this.thread = new Thread(this::run, "dns-server");
+        thread.setDaemon(true);
+        thread.start();
+        LOGGER.info("Local DNS server is listening on {}", address);
+        if (!address.getAddress().isLoopbackAddress()) {
+            LOGGER.warn("Local DNS server on {} accepts queries from other hosts, " +
+                    "it must not be reachable from the internet to avoid becoming an open resolver", address);
+        }
+    }
+
+    private void run() {
+        final ByteBuffer buffer = ByteBuffer.allocate(0xFFFF);
+        while (!closed) {
+            try {
+                selector.select(1000);
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to select DNS server sockets: {}", ex.getMessage(), ex);
+                break;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                final SelectionKey key = iterator.next();
+                iterator.remove();
+                try {
+                    if (!key.isValid()) continue;
+                    if (key.channel() == udp) {
+                        receive(buffer);
+                    } else if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        final Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) connection.read();
+                        if (key.isValid() && key.isWritable()) connection.write();
+                    }
+                } catch (IOException ex) {
+                    LOGGER.debug("DNS server I/O error: {}", ex.getMessage(), ex);
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+            }
+            closeIdleConnections();
+        }
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException ignore) {}
+        }
+        try {
+            selector.close();
+        } catch (IOException ignore) {}
+    }
+
+    private void receive(ByteBuffer buffer) throws IOException {
+        while (true) {
+            buffer.clear();
+            final SocketAddress client = udp.receive(buffer);
+            if (client == null) return;
+            buffer.flip();
+            final Message query;
+            try {
+                query = new Message(buffer);
+            } catch (IOException ex) {
+                continue;
+            }
+            handle(query).thenAccept(response -> {
+                if (response == null) return;
+                final byte[] wire = response.toWire(getPayloadSize(query));
+                try {
+                    // Datagram channels can be written to from any thread
+                    udp.send(ByteBuffer.wrap(wire), client);
+                } catch (IOException ex) {
+                    LOGGER.debug("Failed to send DNS response: {}", ex.getMessage(), ex);
+                }
+            });
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = tcp.accept();
+        if (channel == null) return;
+        if (connections >= MAX_TCP_CONNECTIONS) {
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+        connections++;
+    }
+
+    private void closeIdleConnections() {
+        final long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof Connection)) continue;
+            final Connection connection = (Connection) key.attachment();
+            if (connection.inFlight == 0 && now - connection.lastActive > TCP_IDLE_TIMEOUT) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * @return response to the query, null if no response should be sent
+     */
+    private CompletableFuture<Message> handle(Message query) {
+        try {
+            return resolve(query);
+        } catch (RuntimeException ex) {
+            LOGGER.debug("Failed to handle DNS query: {}", ex.getMessage(), ex);
+            final Message response = new Message(query.getHeader().getID());
+            response.getHeader().setFlag(Flags.QR);
+            if (query.getQuestion() != null) response.addRecord(query.getQuestion(), Section.QUESTION);
+            return respond(response, Rcode.SERVFAIL);
+        }
+    }
+
+    private CompletableFuture<Message> resolve(Message query) {
+        final Header header = query.getHeader();
+        if (header.getFlag(Flags.QR)) return CompletableFuture.completedFuture(null);
+
+        final Message response = new Message(header.getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.RA);
+        if (header.getFlag(Flags.RD)) response.getHeader().setFlag(Flags.RD);
+        final Record question = query.getQuestion();
+        if (question != null) response.addRecord(question, Section.QUESTION);
+        if (query.getOPT() != null) {
+            response.addRecord(new OPTRecord(MAX_PAYLOAD_SIZE, 0, 0), Section.ADDITIONAL);
+        }
+
+        if (header.getOpcode() != Opcode.QUERY) {
+            return respond(response, Rcode.NOTIMP);
+        }
+        final ResolverPipeline pipeline = this.pipeline.get();
+        if (question == null || pipeline == null) {
+            return respond(response, question == null ? Rcode.FORMERR : Rcode.SERVFAIL);
+        }
+
+        final ResolutionEngine engine = pipeline.getEngine();
+        final int type = question.getType();
+        if (question.getDClass() != DClass.IN || (type != Type.A && type != Type.AAAA)) {
+            return forward(engine, query);
+        }
+        final String host = question.getName().toString(true);
+
+        final Blocklist blocklist = pipeline.getBlocklist();
+        if (blocklist != null) {
+            final InetAddress[] local = blocklist.lookup(host);
+            if (local != null) {
+                metrics.recordBlocked();
+                if (local.length == 0) return respond(response, Rcode.NXDOMAIN);
+                addAddresses(response, question, local, BLOCKED_TTL);
+                return respond(response, Rcode.NOERROR);
+            }
+        }
+
+        // Engine only knows the address families it is configured to query
+        final IPPreference preference = engine.getPreference();
+        if (type != preference.getPreferredType() && !(preference.isDualStack() && type == preference.getFallbackType())) {
+            return forward(engine, query);
+        }
+        return engine.resolveAllAsync(host).handle((addresses, ex) -> {
+            if (ex != null) {
+                final Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+                if (cause instanceof NegativeAnswerException) {
+                    final boolean nxDomain = ((NegativeAnswerException) cause).isNXDomain();
+                    response.getHeader().setRcode(nxDomain ? Rcode.NXDOMAIN : Rcode.NOERROR);
+                } else {
+                    response.getHeader().setRcode(Rcode.SERVFAIL);
+                }
+                return response;
+            }
+            addAddresses(response, question, addresses, Math.max(MIN_TTL, engine.getCachedTTL(host)));
+            return response;
+        });
+    }
+
+    private static CompletableFuture<Message> forward(ResolutionEngine engine, Message query) {
+        final int id = query.getHeader().getID();
+        final Message upstream = query.clone();
+        // Client EDNS options, like its subnet, must not override the configured ones
+        final OPTRecord opt = upstream.getOPT();
+        if (opt != null) upstream.removeRecord(opt, Section.ADDITIONAL);
+        return engine.queryAsync(upstream).handle((response, ex) -> {
+            if (ex == null) {
+                response.getHeader().setID(id);
+                return response;
+            }
+            final Message failure = new Message(id);
+            failure.getHeader().setFlag(Flags.QR);
+            failure.getHeader().setRcode(Rcode.SERVFAIL);
+            if (query.getQuestion() != null) failure.addRecord(query.getQuestion(), Section.QUESTION);
+            return failure;
+        });
+    }
+
+    private static CompletableFuture<Message> respond(Message response, int rcode) {
+        response.getHeader().setRcode(rcode);
+        return CompletableFuture.completedFuture(response);
+    }
+
+    private static void addAddresses(Message response, Record question, InetAddress[] addresses, long ttl) {
+        final Name name = question.getName();
+        for (InetAddress address : addresses) {
+            if (question.getType() == Type.A && address instanceof Inet4Address) {
+                response.addRecord(new ARecord(name, DClass.IN, ttl, address), Section.ANSWER);
+            } else if (question.getType() == Type.AAAA && address instanceof Inet6Address) {
+                response.addRecord(new AAAARecord(name, DClass.IN, ttl, address), Section.ANSWER);
+            }
+        }
+    }
+
+    private static int getPayloadSize(Message query) {
+        final OPTRecord opt = query.getOPT();
+        if (opt == null) return UDP_PAYLOAD_SIZE;
+        return Math.max(UDP_PAYLOAD_SIZE, Math.min(MAX_PAYLOAD_SIZE, opt.getPayloadSize()));
+    }
+
+    /**
+     * Stops the server and waits for the sockets to be released,
+     * so that the address can be bound again right away
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        if (Thread.currentThread() == thread) return;
+        try {
+            thread.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * TCP client connection, queries may be pipelined
+     * and are answered in the order they are resolved
+     */
+    private class Connection {
+
+        private final SocketChannel channel;
+        private final ByteBuffer input = ByteBuffer.allocate(0xFFFF + 2);
+        private final Queue<ByteBuffer> output = new ArrayDeque<>();
+
+        private int inFlight;
+        private long lastActive = System.currentTimeMillis();
+        private boolean closed;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void read() throws IOException {
+            if (channel.read(input) == -1) {
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            input.flip();
+            while (input.remaining() >= 2) {
+                final int length = input.getShort(input.position()) & 0xFFFF;
+                if (input.remaining() < length + 2) break;
+                input.position(input.position() + 2);
+                final ByteBuffer data = input.slice();
+                data.limit(length);
+                input.position(input.position() + length);
+
+                final Message query;
+                try {
+                    query = new Message(data);
+                } catch (IOException ex) {
+                    close();
+                    return;
+                }
+                inFlight++;
+                handle(query).thenAccept(response -> {
+                    tasks.add(() -> reply(response));
+                    selector.wakeup();
+                });
+            }
+            input.compact();
+        }
+
+        private void reply(Message response) {
+            inFlight--;
+            lastActive = System.currentTimeMillis();
+            if (closed || response == null) return;
+            final byte[] wire = response.toWire(0xFFFF);
+            final ByteBuffer frame = ByteBuffer.allocate(wire.length + 2);
+            frame.putShort((short) wire.length).put(wire).flip();
+            output.add(frame);
+            try {
+                write();
+            } catch (IOException ex) {
+                close();
+            }
+        }
+
+        private void write() throws IOException {
+            while (!output.isEmpty()) {
+                final ByteBuffer frame = output.peek();
+                channel.write(frame);
+                if (frame.hasRemaining()) break;
+                output.poll();
+            }
+            final SelectionKey key = channel.keyFor(selector);
+            if (key != null && key.isValid()) {
+                key.interestOps(output.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void close() {
+            if (closed) return;
+            closed = true;
+            connections--;
+            try {
+                channel.close();
+            } catch (IOException ignore) {}
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns;
+
+import io.github.krlvm.powertunnel.plugins.dns.cache.NegativeCache;
+import io.github.krlvm.powertunnel.plugins.dns.metrics.DNSMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResolutionEngineTest {
+
+    // Only dropped queries wait for it, answers arrive well before
+    private static final long TIMEOUT = 5000;
+
+    private enum Reply { ANSWER, NODATA, SERVFAIL, DROP }
+
+    private final DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    private final NegativeCache negativeCache = new NegativeCache(16, 300);
+    private final ResolutionEngine engine = new ResolutionEngine(
+            new SimpleResolver(new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort())),
+            null, negativeCache, null,
+            IPPreference.IPV4, new AddressSelector(AddressSelector.Mode.FIRST), new DNSMetrics(),
+            2, TIMEOUT, 4
+    );
+    private volatile Reply aaaa;
+
+    public ResolutionEngineTest() throws IOException {
+        final Thread server = new Thread(this::serve);
+        server.setDaemon(true);
+        server.start();
+    }
+
+    @AfterEach
+    public void close() {
+        engine.close();
+        socket.close();
+    }
+
+    @Test
+    public void failedQueryOfOneFamilyIsNotCached() throws Exception {
+        aaaa = Reply.SERVFAIL;
+        assertThrows(UnknownHostException.class, () -> engine.resolve("example.com", 80));
+        assertNull(negativeCache.get("example.com"), "Failed AAAA query must not make the hostname negative");
+
+        aaaa = Reply.ANSWER;
+        assertNotNull(engine.resolve("example.com", 80));
+    }
+
+    @Test
+    public void droppedQueryOfOneFamilyIsNotCached() {
+        aaaa = Reply.DROP;
+        assertThrows(UnknownHostException.class, () -> engine.resolve("example.com", 80));
+        assertNull(negativeCache.get("example.com"), "Timed out AAAA query must not make the hostname negative");
+    }
+
+    @Test
+    public void nodataForBothFamiliesIsCached() {
+        aaaa = Reply.NODATA;
+        assertThrows(UnknownHostException.class, () -> engine.resolve("example.com", 80));
+        assertEquals(Boolean.FALSE, negativeCache.get("example.com"));
+    }
+
+    /**
+     * A queries always get NODATA, AAAA queries get the current reply
+     */
+    private void serve() {
+        final byte[] buffer = new byte[512];
+        while (!socket.isClosed()) {
+            try {
+                final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                final Message query = new Message(Arrays.copyOf(packet.getData(), packet.getLength()));
+                final Record question = query.getQuestion();
+                final Reply reply = question.getType() == Type.AAAA ? aaaa : Reply.NODATA;
+                if (reply == Reply.DROP) continue;
+
+                final Message response = new Message(query.getHeader().getID());
+                response.getHeader().setFlag(Flags.QR);
+                response.addRecord(question, Section.QUESTION);
+                if (reply == Reply.ANSWER) {
+                    response.addRecord(new AAAARecord(
+                            question.getName(), DClass.IN, 60, InetAddress.getByName("2001:db8::1")
+                    ), Section.ANSWER);
+                } else if (reply == Reply.SERVFAIL) {
+                    response.getHeader().setRcode(Rcode.SERVFAIL);
+                } else {
+                    response.addRecord(new SOARecord(
+                            Name.fromString("example.com."), DClass.IN, 300,
+                            Name.fromString("ns.example.com."), Name.fromString("admin.example.com."),
+                            1, 3600, 600, 86400, 300
+                    ), Section.AUTHORITY);
+                }
+                final byte[] wire = response.toWire();
+                socket.send(new DatagramPacket(wire, wire.length, packet.getSocketAddress()));
+            } catch (IOException ignore) {}
+        }
+    }
+}
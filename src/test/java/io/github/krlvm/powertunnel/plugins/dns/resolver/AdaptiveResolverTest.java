@@ -0,0 +1,95 @@
+/*
+ * This file is part of PowerTunnel-DNS.
+ *
+ * PowerTunnel-DNS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PowerTunnel-DNS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerTunnel-DNS.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.krlvm.powertunnel.plugins.dns.resolver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class AdaptiveResolverTest {
+
+    private final DatagramSocket silent = open();
+    private final DatagramSocket answering = open();
+
+    @AfterEach
+    public void close() {
+        silent.close();
+        answering.close();
+    }
+
+    @Test
+    public void retriesWhenFirstUpstreamNeverAnswers() throws Exception {
+        final Thread server = new Thread(this::answer);
+        server.setDaemon(true);
+        server.start();
+
+        final AdaptiveResolver resolver = new AdaptiveResolver(Arrays.asList(
+                resolver(silent), resolver(answering)
+        ));
+        resolver.setTimeout(Duration.ofSeconds(2));
+
+        final Message query = Message.newQuery(Record.newRecord(Name.fromString("example.com."), Type.A, DClass.IN));
+        // Fails if the first attempt is given the whole timeout
+        final Message response = resolver.sendAsync(query).toCompletableFuture().get(2, TimeUnit.SECONDS);
+        assertEquals(Rcode.NOERROR, response.getRcode());
+        assertEquals(1, response.getSection(Section.ANSWER).size());
+    }
+
+    private void answer() {
+        final byte[] buffer = new byte[512];
+        while (!answering.isClosed()) {
+            try {
+                final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                answering.receive(packet);
+                final Message query = new Message(Arrays.copyOf(packet.getData(), packet.getLength()));
+                final Message response = new Message(query.getHeader().getID());
+                response.getHeader().setFlag(Flags.QR);
+                response.addRecord(query.getQuestion(), Section.QUESTION);
+                response.addRecord(new ARecord(
+                        query.getQuestion().getName(), DClass.IN, 60, InetAddress.getByName("192.0.2.1")
+                ), Section.ANSWER);
+                final byte[] wire = response.toWire();
+                answering.send(new DatagramPacket(wire, wire.length, packet.getSocketAddress()));
+            } catch (IOException ignore) {}
+        }
+    }
+
+    private static Resolver resolver(DatagramSocket socket) {
+        return new SimpleResolver(new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort()));
+    }
+
+    private static DatagramSocket open() {
+        try {
+            return new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}